@@ -1,931 +1,7618 @@
 import java.io.*;
 import java.math.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+import java.lang.management.*;
+import javax.management.*;
+import jdk.jfr.*;
 
 public class Tonnyi
 {
-    private Map<String, BigDecimal> memory;
-    private Stack<BigDecimal> callStack;
-    private Map<String, Integer> labels;
+    // SYSTEM OPERATIONS (0-2)
+    private static final int HALT = 0;
+    private static final int NOP = 1;
+    private static final int DUMP_MEMORY = 2;
+
+    // MEMORY OPERATIONS (3-9)
+    private static final int PRINT = 3;
+    private static final int LOAD_IMMEDIATE = 4;
+    private static final int LOAD_FROM_MEMORY = 5;
+    private static final int MOV = 6;
+    private static final int STORE = 7;
+    private static final int SWAP = 8;
+    private static final int CLEAR = 9;
+
+    // ARITHMETIC OPERATIONS (10-19)
+    private static final int ADD = 10;
+    private static final int SUBTRACT = 11;
+    private static final int MULTIPLY = 12;
+    private static final int DIVIDE = 13;
+    private static final int MODULO = 14;
+    private static final int INCREMENT = 15;
+    private static final int DECREMENT = 16;
+    private static final int POWER = 17;
+    private static final int NEGATE = 18;
+    private static final int ABSOLUTE = 19;
+
+    // BITWISE OPERATIONS (20-25)
+    private static final int AND = 20;
+    private static final int OR = 21;
+    private static final int XOR = 22;
+    private static final int NOT = 23;
+    private static final int SHIFT_LEFT = 24;
+    private static final int SHIFT_RIGHT = 25;
+
+    // COMPARISON OPERATIONS (26)
+    private static final int COMPARE = 26;
+
+    // CONTROL FLOW OPERATIONS (27-35)
+    private static final int JUMP = 27;
+    private static final int JUMP_IF_ZERO = 28;
+    private static final int JUMP_IF_NOT_ZERO = 29;
+    private static final int JUMP_IF_EQUAL = 30;
+    private static final int JUMP_IF_NOT_EQUAL = 31;
+    private static final int JUMP_IF_GREATER = 32;
+    private static final int JUMP_IF_LESS = 33;
+    private static final int CALL = 34;
+    private static final int RETURN = 35;
+
+    // STACK OPERATIONS (36-37)
+    private static final int PUSH = 36;
+    private static final int POP = 37;
+
+    // I/O OPERATIONS (38-40)
+    private static final int INPUT = 38;
+    private static final int PRINT_CHAR = 39;
+    private static final int PRINT_STRING = 40;
+
+    // SPECIAL OPERATIONS (41)
+    private static final int RANDOM = 41;
+
+    // DEBUG OPERATIONS (42-43)
+    private static final int DEBUG_ON = 42;
+    private static final int DEBUG_OFF = 43;
+
+    // BLOCK MEMORY OPERATIONS (44-46)
+    private static final int MEMORY_COPY = 44;
+    private static final int MEMORY_FILL = 45;
+    private static final int MEMORY_COMPARE = 46;
+
+    // I/O OPERATIONS (47)
+    private static final int PRINT_COUNTED_STRING = 47;
+
+    // Decoder-only opcodes: never written in source, produced by Program.decode()
+    private static final int UNKNOWN = -1;
+    private static final int INVALID = -2;
+
+    // Superinstructions: never written in source, produced by Optimizer.optimize()
+    private static final int COMPARE_BRANCH = 100;
+    private static final int INCREMENT_COMPARE_BRANCH = 101;
+    private static final int LOAD_PRINT_CHAR = 102;
+    private static final int MOVE_PAIR = 103;
+
+    // Number of operands each opcode needs; instructions with fewer are executed as NOP
+    private static final int[] OPERAND_COUNT =
+    {
+        0, 0, 0,                      // HALT, NOP, DUMP MEMORY
+        1, 2, 2, 2, 2, 2, 1,          // PRINT .. CLEAR
+        2, 2, 2, 2, 2, 1, 1, 2, 1, 1, // ADD .. ABSOLUTE
+        2, 2, 2, 1, 2, 2,             // AND .. SHIFT RIGHT
+        2,                            // COMPARE
+        1, 1, 1, 1, 1, 1, 1, 1, 0,    // JUMP .. RETURN
+        1, 1,                         // PUSH, POP
+        1, 1, 1,                      // INPUT, PRINT CHAR, PRINT STRING
+        1,                            // RANDOM
+        0, 0,                         // DEBUG MODE ON/OFF
+        3, 3, 3,                      // MEMORY COPY, FILL, COMPARE
+        1                             // PRINT COUNTED STRING
+    };
+
+    // Normalized spelling of every 7-bit opcode, shared by all decoded instructions
+    private static final String[] OPCODE_NAMES = new String[128];
+
+    static
+    {
+        for (int i = 0; i < OPCODE_NAMES.length; i++)
+        {
+            String binary = Integer.toBinaryString(i);
+            OPCODE_NAMES[i] = "0b0000000".substring(0, 9 - binary.length()) + binary;
+        }
+    }
+
+    private Memory memory;
+    private Output output;
+    private Input stdin;
+    private ReturnStack returnStack;
+    private DataStack dataStack;
+    private Program program;
+    private Engine engine;
+    private int tierThreshold;
+    private boolean optimize;
+    private boolean optimizationReport;
+    private boolean statistics;
+    private Path cacheDirectory;
+    private Path imagePath;
     private int programCounter;
     private boolean running;
     private int comparisonResult;
     private boolean debugMode;
+    // Execution limits; 0 means none. Checked on backward transfers only,
+    // where instructions are also counted while limits, metrics or the
+    // ProgramRun event are on.
+    private long instructionLimit;
+    private long timeLimit;
+    private int cellLimit;
+    private boolean limited;
+    private long executed;
+    // 'executed' as of the last poll(), for the metrics thread to read
+    private volatile long published;
+    private int polls;
+    private long startTime;
+    private Limit exceededLimit;
+    // Set when an instruction fails and stops the program
+    private boolean failed;
+    // Statistics, optimizer reports, limit summaries and stack traces
+    private PrintStream errors = System.err;
+    private boolean profiling;
+    private Path profileStacks;
+    // Last executed instructions, kept while --trace is on; null otherwise
+    private Trace trace;
+    private boolean traceOnHalt;
+    // File name reported by the ProgramLoad and ProgramRun events
+    private String source;
+    // Checkpoint log and the instructions between checkpoints (0: only when
+    // requested through the MXBean); the log of the program being run from a
+    // file, null otherwise
+    private Path checkpointPath;
+    private long checkpointInterval;
+    private boolean resume;
+    private Checkpoint checkpoint;
+    // Where programs run from a file keep their memory between runs; null for none
+    private Path memoryFile;
+    private long nextCheckpoint;
+    private volatile boolean checkpointRequested;
+    // Open CALL events by return stack depth while the Call event is enabled, null otherwise
+    private CallEvent[] callEvents;
+    // Reused by PRINT STRING
+    private char[] stringChars = new char[256];
 
     public Tonnyi()
     {
-        memory = new ConcurrentHashMap<>();
-        callStack = new Stack<>();
-        labels = new ConcurrentHashMap<>();
+        this(System.out, System.in);
+    }
+
+    // An interpreter whose INPUT reads from 'in' and whose output goes to
+    // 'out'. Instances are cheap and can be reused: run() any number of
+    // Programs on one, with reset() in between to start from empty memory.
+    // An instance must only be used by one thread at a time.
+    public Tonnyi(OutputStream out, InputStream in)
+    {
+        memory = new Memory();
+        output = new Output(out, false);
+        stdin = new Input(in);
+        returnStack = new ReturnStack(DEFAULT_MAX_CALL_DEPTH);
+        dataStack = new DataStack();
         programCounter = 0;
         running = true;
         comparisonResult = 0;
         debugMode = false;
+        engine = Engine.TIERED;
+        tierThreshold = DEFAULT_TIER_THRESHOLD;
+        optimize = true;
+        cacheDirectory = defaultCacheDirectory();
     }
 
-    public void executeFromFile(String filename)
+    // A fresh interpreter with another one's settings, for running programs
+    // side by side; memory, stacks and streams are its own
+    private Tonnyi(Tonnyi settings, OutputStream out, InputStream in)
     {
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename)))
+        this(out, in);
+        engine = settings.engine;
+        tierThreshold = settings.tierThreshold;
+        optimize = settings.optimize;
+        optimizationReport = settings.optimizationReport;
+        statistics = settings.statistics;
+        cacheDirectory = settings.cacheDirectory;
+        instructionLimit = settings.instructionLimit;
+        timeLimit = settings.timeLimit;
+        cellLimit = settings.cellLimit;
+        profiling = settings.profiling;
+        returnStack.setLimit(settings.returnStack.limit);
+        output.autoFlush = settings.output.autoFlush;
+        stdin.tokens = settings.stdin.tokens;
+        if (settings.trace != null)
         {
-            // First pass: collect labels
-            String line;
-            int lineNumber = 0;
-            while ((line = reader.readLine()) != null)
-            {
-                line = line.trim();
-                if (line.endsWith(":"))
-                {
-                    String label = line.substring(0, line.length() - 1).trim();
-                    labels.put(label, lineNumber);
-                }
-                lineNumber++;
-            }
+            setTrace(settings.trace.capacity);
+        }
+        traceOnHalt = settings.traceOnHalt;
+    }
 
-            // Second pass: execute
-            programCounter = 0;
-            running = true;
+    // $XDG_CACHE_HOME/tonnyi, falling back to ~/.cache/tonnyi
+    private static Path defaultCacheDirectory()
+    {
+        String base = System.getenv("XDG_CACHE_HOME");
+        return base != null && !base.isEmpty()
+                ? Paths.get(base, "tonnyi")
+                : Paths.get(System.getProperty("user.home"), ".cache", "tonnyi");
+    }
 
-            try (BufferedReader execReader = new BufferedReader(new FileReader(filename)))
-            {
-                String[] lines = execReader.lines().toArray(String[]::new);
+    // Backward jumps to one target before the tiered engine compiles the program
+    static final int DEFAULT_TIER_THRESHOLD = 1000;
 
-                while (running && programCounter < lines.length)
-                {
-                    line = lines[programCounter].trim();
-                    programCounter++;
+    // Nested CALLs before CALL stops the program instead of growing the return stack further
+    static final int DEFAULT_MAX_CALL_DEPTH = 1 << 24;
 
-                    // Skip empty lines, comments, and labels
-                    if (line.isEmpty() || line.startsWith("//") || line.endsWith(":"))
-                    {
-                        continue;
-                    }
+    // Exit status when a program is stopped by one of its limits
+    static final int LIMIT_EXIT_STATUS = 3;
 
-                    // Remove inline comments
-                    if (line.contains("//"))
-                    {
-                        line = line.substring(0, line.indexOf("//")).trim();
-                    }
+    // Exit status of --batch when a program failed or had an error
+    static final int FAILURE_EXIT_STATUS = 1;
 
-                    executeInstruction(line);
-                }
-            }
-        }
-        catch (IOException e)
-        {
-            System.out.println("Error reading file: " + e.getMessage());
-        }
-    }
+    // Instructions between checkpoints with --checkpoint
+    static final long DEFAULT_CHECKPOINT_INTERVAL = 1000000000L;
 
-    private void executeInstruction(String instruction)
-    {
-            if (instruction.isEmpty()) return;
-            
-            String[] parts = instruction.split("\\s+", 3);
-            if (parts.length < 1) return;
-        
-            String rawOpcode = parts[0];
-            String[] operands = parts.length > 1 ? 
-                    parseOperands(parts.length > 2 ? parts[1] + " " + parts[2] : parts[1]) : 
-                    new String[0];
+    // Most instructions --trace keeps; the buffer is preallocated at about 50 bytes per entry
+    static final int MAX_TRACE_LENGTH = 1 << 20;
 
-        try
-        {
-            // One-liner normalization for binary opcodes
-            String opcode = rawOpcode.startsWith("0b") ? 
-                "0b" + String.format("%7s", Integer.toBinaryString(
-                    Integer.parseInt(rawOpcode.substring(2).replaceFirst("^0+", "0"), 2)
-                )).replace(' ', '0') : 
-                rawOpcode;
+    // Largest result POWER and SHIFT LEFT may produce while a time or
+    // instruction limit is set. They take time superlinear in it and run
+    // between limit checks, so without a bound a single instruction could
+    // outlast any --max-time; without limits results are unbounded.
+    static final int MAX_RESULT_BITS = 1 << 20;
 
-            switch (opcode)
-            {
-                // SYSTEM OPERATIONS (0-2)
-                case "0b0000000": // HALT (0)
-                    halt();
-                    break;
-    
-                case "0b0000001": // NOP (1)
-                    break;
-    
-                case "0b0000010": // DUMP MEMORY (2)
-                    dumpMemory();
-                    break;
-    
-                // MEMORY OPERATIONS (3-9)
-                case "0b0000011": // PRINT (3)
-                    if (operands.length >= 1)
-                    {
-                        printMemory(operands[0]);
-                    }
-                    break;
-    
-                case "0b0000100": // LOAD IMMEDIATE (4)
-                    if (operands.length >= 2)
-                    {
-                        loadImmediate(operands[0], operands[1]);
-                    }
-                    break;
-    
-                case "0b0000101": // LOAD FROM MEMORY (5)
-                    if (operands.length >= 2)
-                    {
-                        loadFromMemory(operands[0], operands[1]);
-                    }
-                    break;
-    
-                case "0b0000110": // MOV (6)
-                    if (operands.length >= 2)
-                    {
-                        moveData(operands[0], operands[1]);
-                    }
-                    break;
-    
-                case "0b0000111": // STORE (7)
-                    if (operands.length >= 2)
-                    {
-                        storeMemory(operands[0], operands[1]);
-                    }
-                    break;
-    
-                case "0b0001000": // SWAP (8)
-                    if (operands.length >= 2)
-                    {
-                        swap(operands[0], operands[1]);
-                    }
-                    break;
-    
-                case "0b0001001": // CLEAR (9)
-                    if (operands.length >= 1)
-                    {
-                        clear(operands[0]);
-                    }
-                    break;
-    
-                // ARITHMETIC OPERATIONS (10-19)
-                case "0b0001010": // ADD (10)
-                    if (operands.length >= 2)
-                    {
-                        arithmeticOperation(operands[0], operands[1], "ADD");
-                    }
-                    break;
-    
-                case "0b0001011": // SUBTRACT (11)
-                    if (operands.length >= 2)
-                    {
-                        arithmeticOperation(operands[0], operands[1], "SUB");
-                    }
-                    break;
-    
-                case "0b0001100": // MULTIPLY (12)
-                    if (operands.length >= 2)
-                    {
-                        arithmeticOperation(operands[0], operands[1], "MUL");
-                    }
-                    break;
-    
-                case "0b0001101": // DIVIDE (13)
-                    if (operands.length >= 2)
-                    {
-                        arithmeticOperation(operands[0], operands[1], "DIV");
-                    }
-                    break;
-    
-                case "0b0001110": // MODULO (14)
-                    if (operands.length >= 2)
-                    {
-                        arithmeticOperation(operands[0], operands[1], "MOD");
-                    }
-                    break;
-    
-                case "0b0001111": // INCREMENT (15)
-                    if (operands.length >= 1)
-                    {
-                        increment(operands[0]);
-                    }
-                    break;
-    
-                case "0b0010000": // DECREMENT (16)
-                    if (operands.length >= 1)
-                    {
-                        decrement(operands[0]);
-                    }
-                    break;
-    
-                case "0b0010001": // POWER (17)
-                    if (operands.length >= 2)
-                    {
-                        powerOperation(operands[0], operands[1]);
-                    }
-                    break;
-    
-                case "0b0010010": // NEGATE (18)
-                    if (operands.length >= 1)
-                    {
-                        negateOperation(operands[0]);
-                    }
-                    break;
-    
-                case "0b0010011": // ABSOLUTE (19)
-                    if (operands.length >= 1)
-                    {
-                        absoluteOperation(operands[0]);
-                    }
-                    break;
-    
-                // BITWISE OPERATIONS (20-25)
-                case "0b0010100": // AND (20)
-                    if (operands.length >= 2)
-                    {
-                        bitwiseOperation(operands[0], operands[1], "AND");
-                    }
-                    break;
-    
-                case "0b0010101": // OR (21)
-                    if (operands.length >= 2)
-                    {
-                        bitwiseOperation(operands[0], operands[1], "OR");
-                    }
-                    break;
-    
-                case "0b0010110": // XOR (22)
-                    if (operands.length >= 2)
-                    {
-                        bitwiseOperation(operands[0], operands[1], "XOR");
-                    }
-                    break;
-    
-                case "0b0010111": // NOT (23)
-                    if (operands.length >= 1)
-                    {
-                        bitwiseNot(operands[0]);
-                    }
-                    break;
-    
-                case "0b0011000": // SHIFT LEFT (24)
-                    if (operands.length >= 2)
-                    {
-                        shiftOperation(operands[0], operands[1], "LEFT");
-                    }
-                    break;
-    
-                case "0b0011001": // SHIFT RIGHT (25)
-                    if (operands.length >= 2)
-                    {
-                        shiftOperation(operands[0], operands[1], "RIGHT");
-                    }
-                    break;
-    
-                // COMPARISON OPERATIONS (26)
-                case "0b0011010": // COMPARE (26)
-                    if (operands.length >= 2)
-                    {
-                        compare(operands[0], operands[1]);
-                    }
-                    break;
-    
-                // CONTROL FLOW OPERATIONS (27-35)
-                case "0b0011011": // JUMP (27)
-                    if (operands.length >= 1)
-                    {
-                        jump(operands[0]);
-                    }
-                    break;
-    
-                case "0b0011100": // JUMP IF ZERO (28)
-                    if (operands.length >= 1)
-                    {
-                        jumpConditional(operands[0], "ZERO");
-                    }
-                    break;
-    
-                case "0b0011101": // JUMP IF NOT ZERO (29)
-                    if (operands.length >= 1)
-                    {
-                        jumpConditional(operands[0], "NOT_ZERO");
-                    }
-                    break;
-    
-                case "0b0011110": // JUMP IF EQUAL (30)
-                    if (operands.length >= 1)
-                    {
-                        jumpConditional(operands[0], "EQUAL");
-                    }
-                    break;
-    
-                case "0b0011111": // JUMP IF NOT EQUAL (31)
-                    if (operands.length >= 1)
-                    {
-                        jumpConditional(operands[0], "NOT_EQUAL");
-                    }
-                    break;
-    
-                case "0b0100000": // JUMP IF GREATER (32)
-                    if (operands.length >= 1)
-                    {
-                        jumpConditional(operands[0], "GREATER");
-                    }
-                    break;
-    
-                case "0b0100001": // JUMP IF LESS (33)
-                    if (operands.length >= 1)
-                    {
-                        jumpConditional(operands[0], "LESS");
-                    }
-                    break;
-    
-                case "0b0100010": // CALL (34)
-                    if (operands.length >= 1)
-                    {
-                        call(operands[0]);
-                    }
-                    break;
-    
-                case "0b0100011": // RETURN (35)
-                    returnFromCall();
-                    break;
-    
-                // STACK OPERATIONS (36-37)
-                case "0b0100100": // PUSH (36)
-                    if (operands.length >= 1)
-                    {
-                        push(operands[0]);
-                    }
-                    break;
-    
-                case "0b0100101": // POP (37)
-                    if (operands.length >= 1)
-                    {
-                        pop(operands[0]);
-                    }
-                    break;
-    
-                // I/O OPERATIONS (38-40)
-                case "0b0100110": // INPUT (38)
-                    if (operands.length >= 1)
-                    {
-                        input(operands[0]);
-                    }
-                    break;
-    
-                case "0b0100111": // PRINT CHAR (39)
-                    if (operands.length >= 1)
-                    {
-                        printChar(operands[0]);
-                    }
-                    break;
-    
-                case "0b0101000": // PRINT STRING (40)
-                    if (operands.length >= 1)
-                    {
-                        printString(operands[0]);
-                    }
-                    break;
-    
-                // SPECIAL OPERATIONS (41)
-                case "0b0101001": // RANDOM (41)
-                    if (operands.length >= 1)
-                    {
-                        random(operands[0]);
-                    }
-                    break;
-    
-                // DEBUG OPERATIONS (42-43)
-                case "0b0101010": // DEBUG MODE ON (42)
-                    debugMode = true;
-                    break;
-    
-                case "0b0101011": // DEBUG MODE OFF (43)
-                    debugMode = false;
-                    break;
-    
-                default:
-                    System.out.println("Unknown opcode: " + opcode);
-            }
-        }
-        catch (Exception e)
-        {
-            System.out.println("Error executing instruction: " + instruction);
-            e.printStackTrace();
-            running = false;
-        }
+    // Backward transfers between clock reads while a time limit is set
+    private static final int TIME_CHECK_INTERVAL = 1024;
+
+    // What stopped a program that ran into a limit
+    public enum Limit
+    {
+        INSTRUCTIONS,
+        TIME,
+        CALL_DEPTH,
+        MEMORY,
+        // A POWER or SHIFT LEFT result over MAX_RESULT_BITS, under a time or instruction limit
+        RESULT_SIZE
     }
 
-    private String[] parseOperands(String operandString)
+    // How decoded instructions are dispatched; all engines behave identically
+    public enum Engine
     {
-        return operandString.split("[,\\s]+");
+        // SWITCH until a loop gets hot, then COMPILED from the current instruction
+        TIERED,
+        // One switch over the opcode per instruction
+        SWITCH,
+        // One call per instruction to a handler pre-bound to its opcode and operand shape
+        THREADED,
+        // The program is compiled to a JVM class; falls back to THREADED if it cannot be
+        COMPILED
     }
 
-    private boolean isValidAddress(String address)
+    public void executeFromFile(String filename)
     {
-        if (!address.matches("0x[0-9A-Fa-f]{4}"))
+        reset();
+        source = filename;
+        Source file;
+        Program loaded;
+        try
         {
-            System.out.println("Error: Invalid address format '" + address + "'. Must be 4-digit hex (0x0000-0xFFFF)");
-            return false;
+            file = Source.read(filename);
+            loaded = load(file);
         }
-
-        try
+        catch (IOException e)
         {
-            int addrValue = Integer.parseInt(address.substring(2), 16);
-            if (addrValue < 0x0000 || addrValue > 0xFFFF)
-            {
-                System.out.println("Error: Memory address " + address + " is beyond hardware limits (0x0000-0xFFFF)");
-                return false;
-            }
-            return true;
+            output.println("Error reading file: " + e.getMessage());
+            output.flush();
+            return;
         }
-        catch (NumberFormatException e)
+        if (statistics)
         {
-            System.out.println("Error: Invalid hex value in address '" + address + "'");
-            return false;
+            errors.println("Program: " + loaded.code.length + " instruction(s), "
+                    + loaded.labels.size() + " label(s), " + loaded.constants.size() + " unique constant(s)");
         }
-    }
 
-    private BigDecimal getValue(String operand)
-    {
-        try
+        if (checkpointPath != null)
         {
-            if (operand.startsWith("#"))
+            try
             {
-                return new BigDecimal(operand.substring(1));
+                checkpoint = Checkpoint.of(checkpointPath, file.hash, loaded, optimize);
             }
-            else if (isValidAddress(operand))
+            catch (IOException e)
             {
-                return memory.getOrDefault(operand, BigDecimal.ZERO);
+                output.println("Error reading file: " + e.getMessage());
+                output.flush();
+                return;
             }
-            else
+        }
+
+        MemoryFile mapped = null;
+        if (memoryFile != null)
+        {
+            try
+            {
+                mapped = MemoryFile.open(memoryFile);
+                mapped.load(memory);
+            }
+            catch (IOException e)
             {
-                throw new IllegalArgumentException("Unexpected memory address: " + operand);
+                output.println("Error reading memory file: " + e.getMessage());
+                output.flush();
+                closeMemoryFile(mapped);
+                return;
             }
         }
-        catch (NumberFormatException e)
+
+        try
+        {
+            execute(loaded);
+        }
+        finally
         {
-            System.out.println("Error: Invalid number format '" + operand + "'");
-            return BigDecimal.ZERO;
+            if (mapped != null)
+            {
+                try
+                {
+                    mapped.save(memory);
+                }
+                catch (IOException e)
+                {
+                    errors.println("Error writing memory file: " + e.getMessage());
+                }
+                closeMemoryFile(mapped);
+            }
         }
-        catch (IllegalArgumentException e)
+        if (exceededLimit != null)
         {
-            System.out.println("Error: " + e.getMessage());
-            return BigDecimal.ZERO;
+            errors.println("Limit exceeded: " + describeLimit(exceededLimit) + ", stopped after "
+                    + (System.nanoTime() - startTime) / 1000000 + " ms");
         }
     }
 
-    private void setValue(String address, BigDecimal value)
+    private void closeMemoryFile(MemoryFile mapped)
     {
+        if (mapped == null)
+        {
+            return;
+        }
         try
         {
-            if (isValidAddress(address))
-            {
-                memory.put(address, value);
-            }
-            else
-            {
-                throw new IllegalArgumentException("Cannot access memory address: " + address);
-            }
+            mapped.close();
         }
-        catch (IllegalArgumentException e)
+        catch (IOException e)
         {
-            System.out.println("Error: " + e.getMessage());
+            errors.println("Error closing memory file: " + e.getMessage());
         }
     }
 
-    // Memory Operations
-    private void printMemory(String address)
+    // Decodes (or fetches from the cache) and optimizes a program; the
+    // result holds no interpreter state, so it can be run by any number of them
+    private Program load(Source source) throws IOException
     {
-        if (debugMode)
+        LoadEvent event = beginLoadEvent();
+        Program loaded = Program.load(source, cacheDirectory);
+        if (imagePath != null)
         {
-            System.out.println("Memory[" + address + "] = " + getValue(address));
+            ProgramImage.write(loaded, source.hash, imagePath);
         }
-        else
+        if (optimize)
         {
-            System.out.println(getValue(address));
+            loaded = Optimizer.optimize(loaded, optimizationReport ? errors : null);
         }
+        commitLoadEvent(event, source.filename, loaded, optimize);
+        return loaded;
     }
 
-    private void loadImmediate(String address, String valueStr)
+    // A started event, or null while Flight Recorder is not initialized.
+    // Kept out of LoadEvent itself, which must not be loaded before then.
+    private static LoadEvent beginLoadEvent()
     {
-        setValue(address, getValue(valueStr));
+        if (!FlightRecorder.isInitialized())
+        {
+            return null;
+        }
+        LoadEvent event = new LoadEvent();
+        event.begin();
+        return event;
     }
 
-    private void loadFromMemory(String dest, String src)
+    private static void commitLoadEvent(LoadEvent event, String source, Program program, boolean optimized)
     {
-        setValue(dest, getValue(src));
+        if (event == null)
+        {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.source = source;
+            event.instructions = program.code.length;
+            event.labels = program.labels.size();
+            event.constants = program.constants.size();
+            event.optimized = optimized;
+            event.commit();
+        }
     }
 
-    private void storeMemory(String src, String dest)
+    // Execute the decoded instruction stream
+    private void execute(Program program)
     {
-        setValue(dest, getValue(src));
-    }
+        this.program = program;
+        programCounter = 0;
+        running = true;
+        comparisonResult = 0;
+        debugMode = false;
+        returnStack.clear();
+        dataStack.clear();
+        executed = 0;
+        published = 0;
+        polls = 0;
+        exceededLimit = null;
+        failed = false;
+        if (checkpoint != null && !startCheckpoint())
+        {
+            return;
+        }
 
-    private void moveData(String dest, String src)
-    {
-        setValue(dest, getValue(src));
-    }
+        RunEvent event = FlightRecorder.isInitialized() ? new RunEvent() : null;
+        boolean monitored = Metrics.enabled;
+        limited = instructionLimit > 0 || timeLimit > 0 || cellLimit > 0 || monitored
+                || (event != null && event.isEnabled()) || checkpoint != null;
+        callEvents = event != null && new CallEvent().isEnabled() ? new CallEvent[64] : null;
+        if (monitored)
+        {
+            Metrics.INSTANCE.started(this);
+        }
+        if (event != null)
+        {
+            event.begin();
+        }
+        if (trace != null)
+        {
+            trace.clear(program);
+            Trace.TRACING.add(this);
+        }
+        startTime = System.nanoTime();
 
-    // Arithmetic Operations
-    private void arithmeticOperation(String dest, String src, String operation)
-    {
         try
         {
-            BigDecimal val1 = getValue(dest);
-            BigDecimal val2 = getValue(src);
-            BigDecimal result = BigDecimal.ZERO;
-
-            switch (operation)
+            if (profiling)
             {
-                case "ADD":
-                    result = val1.add(val2);
-                    break;
-                case "SUB":
-                    result = val1.subtract(val2);
-                    break;
-                case "MUL":
-                    result = val1.multiply(val2);
-                    break;
-                case "DIV":
-                    if (val2.compareTo(BigDecimal.ZERO) == 0)
-                    {
-                        System.out.println("Error: Division by zero");
-                        result = BigDecimal.ZERO;
-                    }
-                    else
-                    {
-                        result = val1.divide(val2, 32, RoundingMode.HALF_UP);
-                    }
-                    break;
-                case "MOD":
-                    if (val2.compareTo(BigDecimal.ZERO) == 0)
-                    {
-                        System.out.println("Error: Modulo by zero");
-                        result = BigDecimal.ZERO;
-                    }
-                    else
-                    {
-                        result = val1.remainder(val2);
-                    }
-                    break;
+                runProfiled();
+            }
+            else if (trace != null)
+            {
+                runTraced();
+            }
+            else if (engine == Engine.TIERED)
+            {
+                runTiered();
+            }
+            else if (engine == Engine.COMPILED)
+            {
+                runCompiled();
+            }
+            else if (engine == Engine.THREADED)
+            {
+                runThreaded();
+            }
+            else
+            {
+                runSwitch();
+            }
+        }
+        finally
+        {
+            output.flush();
+            if (trace != null)
+            {
+                Trace.TRACING.remove(this);
+                if (traceOnHalt && !failed)
+                {
+                    trace.dump(errors, stopReason(), programCounter);
+                }
+            }
+            if (monitored)
+            {
+                Metrics.INSTANCE.finished(this);
+            }
+            if (event != null)
+            {
+                event.end();
+            }
+            if (event != null && event.shouldCommit())
+            {
+                event.source = source;
+                event.engine = profiling ? "profiled" : engine.name().toLowerCase(Locale.ROOT);
+                event.instructions = executed;
+                event.stopReason = stopReason();
+                event.maxCallDepth = returnStack.highest();
+                event.memoryCells = memory.touchedCount();
+                event.commit();
             }
+            callEvents = null;
+            if (checkpoint != null)
+            {
+                finishCheckpoint();
+            }
+        }
+    }
 
-            setValue(dest, result);
+    // Opens the checkpoint log, resuming from it if asked to; false, with
+    // the error reported, if it cannot be used
+    private boolean startCheckpoint()
+    {
+        try
+        {
+            if (checkpoint.start(this, resume))
+            {
+                errors.println("Resumed from " + checkpointPath + " at "
+                        + (programCounter < program.code.length ? "line " + program.code[programCounter].line : "the end")
+                        + " after " + checkpoint.resumedAfter() + " instructions");
+            }
         }
-        catch (Exception e)
+        catch (IOException e)
         {
-            System.out.println("Error in arithmetic operation: " + e.getMessage());
+            output.println("Error reading checkpoint: " + e.getMessage());
+            output.flush();
+            checkpoint = null;
+            return false;
         }
+        nextCheckpoint = checkpointInterval > 0 ? checkpointInterval : Long.MAX_VALUE;
+        checkpointRequested = false;
+        Checkpoint.CHECKPOINTING.add(this);
+        return true;
     }
 
-    private void increment(String address)
+    // Called from poll() with the pc at the next instruction to execute
+    private void writeCheckpoint()
     {
-        setValue(address, getValue(address).add(BigDecimal.ONE));
+        checkpointRequested = false;
+        if (checkpointInterval > 0)
+        {
+            nextCheckpoint = executed + checkpointInterval;
+        }
+        // What was printed before the checkpoint is not printed again on resume
+        output.flush();
+        try
+        {
+            checkpoint.write(this);
+        }
+        catch (IOException e)
+        {
+            errors.println("Error writing checkpoint: " + e.getMessage());
+        }
     }
 
-    private void decrement(String address)
+    // A program that ran to its end needs no log; one that failed or hit a
+    // limit keeps it, to be resumed (with a higher limit, say) later
+    private void finishCheckpoint()
     {
-        setValue(address, getValue(address).subtract(BigDecimal.ONE));
+        Checkpoint.CHECKPOINTING.remove(this);
+        try
+        {
+            checkpoint.close(!failed && exceededLimit == null);
+        }
+        catch (IOException e)
+        {
+            errors.println("Error closing checkpoint: " + e.getMessage());
+        }
+        checkpoint = null;
     }
 
-    // Bitwise Operations
-    private void bitwiseOperation(String dest, String src, String operation)
+    // Why the last run ended, as reported by the ProgramRun event
+    private String stopReason()
     {
-        BigDecimal val1 = getValue(dest);
-        BigDecimal val2 = getValue(src);
+        if (failed)
+        {
+            return "error";
+        }
+        if (exceededLimit != null)
+        {
+            return "limit: " + exceededLimit.name().toLowerCase(Locale.ROOT);
+        }
+        return running ? "end" : "halt";
+    }
 
-        BigInteger bigInt1 = val1.toBigInteger();
-        BigInteger bigInt2 = val2.toBigInteger();
-        BigInteger result = BigInteger.ZERO;
+    // Runs a loaded program on this interpreter. Memory is left as the
+    // previous run or setCell() left it, so inputs can be placed in cells
+    // beforehand and results read with getCell() afterwards; stacks, flags
+    // and limits start afresh on every run.
+    public void run(Program program)
+    {
+        execute(program);
+    }
 
-        switch (operation)
+    // Zeroes memory and empties both stacks, in time proportional to the
+    // number of cells the previous runs wrote
+    public void reset()
+    {
+        memory.clear();
+        returnStack.clear();
+        dataStack.clear();
+        comparisonResult = 0;
+        debugMode = false;
+    }
+
+    public BigDecimal getCell(int address)
+    {
+        return memory.get(checkAddress(address));
+    }
+
+    public void setCell(int address, BigDecimal value)
+    {
+        if (value == null)
         {
-            case "AND":
-                result = bigInt1.and(bigInt2);
-                break;
-            case "OR":
-                result = bigInt1.or(bigInt2);
-                break;
-            case "XOR":
-                result = bigInt1.xor(bigInt2);
-                break;
+            throw new NullPointerException("value");
         }
+        memory.set(checkAddress(address), value);
+    }
 
-        setValue(dest, new BigDecimal(result));
+    public void setCell(int address, long value)
+    {
+        memory.setLong(checkAddress(address), value);
     }
 
-    private void bitwiseNot(String address)
+    private static int checkAddress(int address)
     {
-        BigDecimal value = getValue(address);
-        BigInteger bigValue = value.toBigInteger();
-        setValue(address, new BigDecimal(bigValue.not()));
+        if (address < 0 || address >= Memory.SIZE)
+        {
+            throw new IllegalArgumentException("Address out of range: " + address);
+        }
+        return address;
     }
 
-    private void shiftOperation(String dest, String src, String direction)
+    // Later INPUT instructions read from 'in'; anything buffered from the previous stream is dropped
+    public void setInput(InputStream in)
     {
-        BigDecimal value = getValue(dest);
-        BigDecimal shift = getValue(src);
+        boolean tokens = stdin.tokens;
+        stdin = new Input(in);
+        stdin.tokens = tokens;
+    }
 
-        BigInteger bigValue = value.toBigInteger();
-        int shiftAmount = shift.intValue();
+    // Flushes what has been printed so far, then sends later output to 'out'
+    public void setOutput(OutputStream out)
+    {
+        output.flush();
+        output = new Output(out, output.autoFlush);
+    }
+
+    // Where statistics, optimizer reports, limit summaries and stack traces go; System.err by default
+    public void setErrorStream(PrintStream errors)
+    {
+        this.errors = errors;
+    }
+
+    // Count executions per line, opcode family, call target and memory cell
+    // and report them on the error stream when the program ends. Programs
+    // are interpreted while profiling, whatever the engine.
+    public void setProfiling(boolean profiling)
+    {
+        this.profiling = profiling;
+    }
+
+    // Where a profiled run writes its call stacks in collapsed form, for
+    // flame graph tools; null for the report only
+    public void setProfileStacks(Path profileStacks)
+    {
+        this.profileStacks = profileStacks;
+    }
 
-        if (direction.equals("LEFT"))
+    // Keep the last 'entries' executed instructions, with the values of
+    // their address operands before and of the first one after, and print
+    // them when an instruction fails or on the dumpTraces operation of the
+    // Tonnyi:type=Metrics MXBean, which this publishes; 0 turns it off
+    public void setTrace(int entries)
+    {
+        if (entries < 0 || entries > MAX_TRACE_LENGTH)
         {
-            setValue(dest, new BigDecimal(bigValue.shiftLeft(shiftAmount)));
+            throw new IllegalArgumentException("Trace length must be between 0 and " + MAX_TRACE_LENGTH + ": " + entries);
         }
-        else
+        trace = entries == 0 ? null : new Trace(entries);
+        if (trace != null)
         {
-            setValue(dest, new BigDecimal(bigValue.shiftRight(shiftAmount)));
+            Metrics.publish();
         }
     }
 
-    // Comparison
-    private void compare(String addr1, String addr2)
+    // Also print the trace whenever a program stops without an error
+    public void setTraceOnHalt(boolean traceOnHalt)
     {
-        BigDecimal val1 = getValue(addr1);
-        BigDecimal val2 = getValue(addr2);
-        comparisonResult = val1.compareTo(val2);
+        this.traceOnHalt = traceOnHalt;
     }
 
-    // Control Flow
-    private void jump(String label)
+    // Programs run with executeFromFile() write their state to 'file' every
+    // 'interval' executed instructions (0 for never), on the
+    // requestCheckpoints operation of the Tonnyi:type=Metrics MXBean, which
+    // this publishes, and when a limit stops them; the file is deleted once the
+    // program ends on its own. Checkpoints are taken on backward transfers,
+    // like limit checks. Null turns them off.
+    public void setCheckpoint(Path file, long interval)
     {
-        if (labels.containsKey(label))
+        if (interval < 0)
         {
-            programCounter = labels.get(label);
+            throw new IllegalArgumentException("Checkpoint interval must not be negative: " + interval);
         }
-        else
+        checkpointPath = file;
+        checkpointInterval = interval;
+        if (file != null)
         {
-            throw new IllegalArgumentException("Unknown label: " + label);
+            Metrics.publish();
         }
     }
 
-    // POWER operation: dest = dest ^ src
-    private void powerOperation(String dest, String src)
+    // Programs run with executeFromFile() start with the memory held in
+    // 'file' (created empty if missing) instead of empty memory, and the
+    // memory they end with is saved back to it, so state can be kept across
+    // runs and data sets prepared by other tools. Null turns it off.
+    public void setMemoryFile(Path file)
     {
-        BigDecimal base = getValue(dest);
-        BigDecimal exponent = getValue(src);
-        
-        if (exponent.remainder(BigDecimal.ONE).compareTo(BigDecimal.ZERO) == 0)
+        this.memoryFile = file;
+    }
+
+    // Carry on from the checkpoint file, if it exists, instead of starting
+    // the program afresh. Memory, stacks, flags and the pc are restored;
+    // output already printed and input already read are not, and limits
+    // count from the resumed point.
+    public void setResume(boolean resume)
+    {
+        this.resume = resume;
+    }
+
+    // Publishes the Tonnyi:type=Metrics MXBean; from then on every
+    // interpreter in the JVM counts instructions as it runs
+    public static void enableMetrics()
+    {
+        Metrics.enable();
+    }
+
+    // Whether the last program was stopped by an instruction that failed
+    public boolean hasFailed()
+    {
+        return failed;
+    }
+
+    public void setEngine(Engine engine)
+    {
+        this.engine = engine;
+    }
+
+    // Peephole optimization and superinstructions; on by default
+    public void setOptimize(boolean optimize)
+    {
+        this.optimize = optimize;
+    }
+
+    // Describe what the optimizer removed and fused on stderr before running
+    public void setOptimizationReport(boolean optimizationReport)
+    {
+        this.optimizationReport = optimizationReport;
+    }
+
+    // Where decoded programs are cached between runs; null disables the cache
+    public void setCacheDirectory(Path cacheDirectory)
+    {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    // Also write the decoded program to this .tonc image, which can be run in place of the source
+    public void setImagePath(Path imagePath)
+    {
+        this.imagePath = imagePath;
+    }
+
+    // Print instruction, label and constant counts on stderr before running
+    public void setStatistics(boolean statistics)
+    {
+        this.statistics = statistics;
+    }
+
+    public void setTierThreshold(int tierThreshold)
+    {
+        if (tierThreshold < 0)
         {
-            // Integer exponent - use BigDecimal's pow() for perfect precision
-            try
-            {
-                setValue(dest, base.pow(exponent.intValueExact()));
-            }
-            catch (ArithmeticException e)
-            {
-                System.out.println("Error: Exponent too large for integer power operation");
-                setValue(dest, BigDecimal.ZERO);
-            }
+            throw new IllegalArgumentException("Tier threshold must not be negative: " + tierThreshold);
         }
-        else
+        this.tierThreshold = tierThreshold;
+    }
+
+    public void setMaxCallDepth(int maxCallDepth)
+    {
+        if (maxCallDepth < 1)
         {
-            // Decimal exponent - use log/exp method for better precision
-            try
-            {
-                // dest = e^(exponent * ln(base))
-                BigDecimal result = BigDecimal.valueOf(
-                    Math.exp(exponent.doubleValue() * Math.log(base.doubleValue()))
-                );
-                setValue(dest, result);
-            }
-            catch (Exception e)
-            {
-                System.out.println("Error in power operation: " + e.getMessage());
-                setValue(dest, BigDecimal.ZERO);
-            }
+            throw new IllegalArgumentException("Call depth limit must be positive: " + maxCallDepth);
         }
+        returnStack.setLimit(maxCallDepth);
     }
 
-    // NEGATE operation: address = -address
-    private void negateOperation(String address)
+    // Most instructions a program may execute; 0 for no limit
+    public void setInstructionLimit(long instructionLimit)
     {
-        BigDecimal value = getValue(address);
-        setValue(address, value.negate());
+        if (instructionLimit < 0)
+        {
+            throw new IllegalArgumentException("Instruction limit must not be negative: " + instructionLimit);
+        }
+        this.instructionLimit = instructionLimit;
     }
-    
-    // ABSOLUTE operation: address = |address|
-    private void absoluteOperation(String address)
+
+    // Longest a program may run, in milliseconds; 0 for no limit
+    public void setTimeLimit(long timeLimit)
     {
-        BigDecimal value = getValue(address);
-        setValue(address, value.abs());
+        if (timeLimit < 0)
+        {
+            throw new IllegalArgumentException("Time limit must not be negative: " + timeLimit);
+        }
+        this.timeLimit = timeLimit;
+    }
+
+    // Most distinct memory cells a program may write; 0 for no limit
+    public void setCellLimit(int cellLimit)
+    {
+        if (cellLimit < 0)
+        {
+            throw new IllegalArgumentException("Memory cell limit must not be negative: " + cellLimit);
+        }
+        this.cellLimit = cellLimit;
     }
-    private void jumpConditional(String label, String condition)
+
+    // The limit that stopped the last program, or null if it finished on its own
+    public Limit getExceededLimit()
     {
-        boolean shouldJump = false;
+        return exceededLimit;
+    }
 
-        switch (condition)
+    // Every infinite run goes backward somewhere, so limits are only checked
+    // when a transfer goes back (loops, recursive calls, RETURN to an earlier
+    // CALL), which keeps the cost off straight-line code. Instructions are
+    // counted by the engines and added here; the clock is read every
+    // TIME_CHECK_INTERVAL checks. False once a limit has stopped the program.
+    private boolean poll(int count)
+    {
+        executed += count;
+        published = executed;
+        if (instructionLimit > 0 && executed > instructionLimit)
         {
-            case "ZERO":
-                shouldJump = comparisonResult == 0;
-                break;
-            case "NOT_ZERO":
-                shouldJump = comparisonResult != 0;
-                break;
-            case "EQUAL":
-                shouldJump = comparisonResult == 0;
-                break;
-            case "NOT_EQUAL":
-                shouldJump = comparisonResult != 0;
-                break;
-            case "GREATER":
-                shouldJump = comparisonResult > 0;
-                break;
-            case "LESS":
-                shouldJump = comparisonResult < 0;
-                break;
+            return exceed(Limit.INSTRUCTIONS);
+        }
+        if (cellLimit > 0 && memory.touchedCount() > cellLimit)
+        {
+            return exceed(Limit.MEMORY);
+        }
+        if (timeLimit > 0 && ++polls % TIME_CHECK_INTERVAL == 0
+                && System.nanoTime() - startTime > timeLimit * 1000000)
+        {
+            return exceed(Limit.TIME);
+        }
+        if (checkpoint != null && (executed >= nextCheckpoint || checkpointRequested))
+        {
+            writeCheckpoint();
+        }
+        return true;
+    }
+
+    private boolean exceed(Limit limit)
+    {
+        exceededLimit = limit;
+        running = false;
+        // Limits found by poll() stop between instructions, a state that can
+        // be resumed; the others stop in the middle of one
+        if (checkpoint != null && limit != Limit.CALL_DEPTH && limit != Limit.RESULT_SIZE)
+        {
+            writeCheckpoint();
+        }
+        return false;
+    }
+
+    private String describeLimit(Limit limit)
+    {
+        switch (limit)
+        {
+            case INSTRUCTIONS:
+                return "more than " + instructionLimit + " instructions";
+            case TIME:
+                return "more than " + timeLimit + " ms";
+            case CALL_DEPTH:
+                return "more than " + returnStack.limit + " nested calls";
+            case MEMORY:
+                return "more than " + cellLimit + " memory cells written";
+            default:
+                return "a POWER or SHIFT LEFT result of more than " + MAX_RESULT_BITS + " bits";
+        }
+    }
+
+    // Whether a result of about 'bits' bits is too large to compute under
+    // the time and instruction limits; stops the program if so
+    private boolean exceedsResultSize(long bits)
+    {
+        if ((timeLimit > 0 || instructionLimit > 0) && bits > MAX_RESULT_BITS)
+        {
+            exceed(Limit.RESULT_SIZE);
+            return true;
+        }
+        return false;
+    }
+
+    // Interprets while counting backward jumps per target. Once one target
+    // has been jumped back to tierThreshold times the program is compiled
+    // and the compiled engine carries on from the current pc, so short
+    // scripts never pay for compilation and long loops get the fast tier.
+    private void runTiered()
+    {
+        Instruction[] code = program.code;
+        int[] backEdges = new int[code.length + 1];
+        int count = 0;
+        while (running && programCounter < code.length)
+        {
+            int pc = programCounter++;
+            Instruction instruction = code[pc];
+            executeInstruction(instruction);
+            count++;
+
+            int target = programCounter;
+            if (target <= pc)
+            {
+                if (limited && !poll(count))
+                {
+                    return;
+                }
+                count = 0;
+                if (instruction.isJump() && ++backEdges[target] >= tierThreshold)
+                {
+                    runCompiled();
+                    return;
+                }
+            }
+        }
+        executed += count;
+    }
+
+    private void runSwitch()
+    {
+        Instruction[] code = program.code;
+        if (!limited)
+        {
+            while (running && programCounter < code.length)
+            {
+                executeInstruction(code[programCounter++]);
+            }
+            return;
+        }
+
+        int count = 0;
+        while (running && programCounter < code.length)
+        {
+            int pc = programCounter++;
+            executeInstruction(code[pc]);
+            count++;
+            if (programCounter <= pc)
+            {
+                if (!poll(count))
+                {
+                    return;
+                }
+                count = 0;
+            }
+        }
+        executed += count;
+    }
+
+    // The switch engine recording every instruction into the trace buffer;
+    // used for every engine while tracing, since compiled code has no
+    // per-instruction boundaries to record at
+    private void runTraced()
+    {
+        Instruction[] code = program.code;
+        Trace trace = this.trace;
+        int count = 0;
+        while (running && programCounter < code.length)
+        {
+            int pc = programCounter++;
+            Instruction instruction = code[pc];
+            trace.before(pc, instruction, memory);
+            executeInstruction(instruction);
+            trace.after(instruction, memory);
+            count++;
+            if (programCounter <= pc && limited)
+            {
+                if (!poll(count))
+                {
+                    return;
+                }
+                count = 0;
+            }
+        }
+        executed += count;
+    }
+
+    // The switch engine with a Profiler counting along; used for every
+    // engine while profiling, so the report is the same whichever is chosen
+    private void runProfiled()
+    {
+        Instruction[] code = program.code;
+        Profiler profiler = new Profiler(program);
+        int count = 0;
+        try
+        {
+            while (running && programCounter < code.length)
+            {
+                int pc = programCounter++;
+                Instruction instruction = code[pc];
+                int depth = returnStack.depth();
+                if (trace != null)
+                {
+                    trace.before(pc, instruction, memory);
+                }
+                if (profiler.count(pc))
+                {
+                    long start = System.nanoTime();
+                    executeInstruction(instruction);
+                    profiler.sample(instruction.opcode, System.nanoTime() - start);
+                }
+                else
+                {
+                    executeInstruction(instruction);
+                }
+                if (trace != null)
+                {
+                    trace.after(instruction, memory);
+                }
+                if (returnStack.depth() != depth)
+                {
+                    if (returnStack.depth() > depth)
+                    {
+                        profiler.enter(programCounter);
+                    }
+                    else
+                    {
+                        profiler.exit();
+                    }
+                }
+                count++;
+                if (programCounter <= pc && limited)
+                {
+                    if (!poll(count))
+                    {
+                        break;
+                    }
+                    count = 0;
+                }
+            }
+            executed += count;
+        }
+        finally
+        {
+            profiler.finish();
+            output.flush();
+            profiler.report(errors, System.nanoTime() - startTime);
+            if (profileStacks != null)
+            {
+                try
+                {
+                    profiler.writeStacks(profileStacks);
+                    errors.println("Call stacks written to " + profileStacks);
+                }
+                catch (IOException e)
+                {
+                    errors.println("Error writing call stacks: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void runCompiled()
+    {
+        CompiledProgram compiled = program.compiled(limited);
+        if (compiled == null)
+        {
+            runThreaded();
+            return;
+        }
+
+        int length = program.code.length;
+        while (running && programCounter < length)
+        {
+            programCounter = compiled.run(this, programCounter);
+        }
+    }
+
+    private void runThreaded()
+    {
+        Handler[] handlers = program.handlers();
+        int current = 0;
+        int count = 0;
+        try
+        {
+            while (running && programCounter < handlers.length)
+            {
+                current = programCounter++;
+                handlers[current].execute(this);
+                count++;
+                if (programCounter <= current && limited)
+                {
+                    if (!poll(count))
+                    {
+                        return;
+                    }
+                    count = 0;
+                }
+            }
+            executed += count;
+        }
+        catch (Exception e)
+        {
+            reportError(program.code[current], e);
+        }
+    }
+
+    // Flush after every print instruction instead of only at HALT, INPUT,
+    // buffer-full and program end; useful when watching output live
+    public void setAutoFlush(boolean autoFlush)
+    {
+        output.autoFlush = autoFlush;
+    }
+
+    // INPUT normally consumes one whole line per instruction; in token mode it
+    // reads whitespace-separated numbers instead, so one line can feed several INPUTs
+    public void setInputTokens(boolean tokens)
+    {
+        stdin.tokens = tokens;
+    }
+
+    private void executeInstruction(Instruction instruction)
+    {
+        try
+        {
+            dispatch(instruction);
+        }
+        catch (Exception e)
+        {
+            reportError(instruction, e);
+        }
+    }
+
+    // Executes one instruction; failures propagate to the caller
+    private void dispatch(Instruction instruction)
+    {
+        Operand[] operands = instruction.operands;
+
+        switch (instruction.opcode)
+        {
+            // SYSTEM OPERATIONS (0-2)
+            case HALT:
+                halt();
+                break;
+
+            case NOP:
+                break;
+
+            case DUMP_MEMORY:
+                dumpMemory();
+                break;
+
+            // MEMORY OPERATIONS (3-9)
+            case PRINT:
+                printMemory(operands[0]);
+                break;
+
+            case LOAD_IMMEDIATE:
+                loadImmediate(operands[0], operands[1]);
+                break;
+
+            case LOAD_FROM_MEMORY:
+                loadFromMemory(operands[0], operands[1]);
+                break;
+
+            case MOV:
+                moveData(operands[0], operands[1]);
+                break;
+
+            case STORE:
+                storeMemory(operands[0], operands[1]);
+                break;
+
+            case SWAP:
+                swap(operands[0], operands[1]);
+                break;
+
+            case CLEAR:
+                clear(operands[0]);
+                break;
+
+            // ARITHMETIC OPERATIONS (10-19)
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case DIVIDE:
+            case MODULO:
+                arithmeticOperation(operands[0], operands[1], instruction.opcode);
+                break;
+
+            case INCREMENT:
+                increment(operands[0]);
+                break;
+
+            case DECREMENT:
+                decrement(operands[0]);
+                break;
+
+            case POWER:
+                powerOperation(operands[0], operands[1]);
+                break;
+
+            case NEGATE:
+                negateOperation(operands[0]);
+                break;
+
+            case ABSOLUTE:
+                absoluteOperation(operands[0]);
+                break;
+
+            // BITWISE OPERATIONS (20-25)
+            case AND:
+            case OR:
+            case XOR:
+                bitwiseOperation(operands[0], operands[1], instruction.opcode);
+                break;
+
+            case NOT:
+                bitwiseNot(operands[0]);
+                break;
+
+            case SHIFT_LEFT:
+            case SHIFT_RIGHT:
+                shiftOperation(operands[0], operands[1], instruction.opcode);
+                break;
+
+            // COMPARISON OPERATIONS (26)
+            case COMPARE:
+                compare(operands[0], operands[1]);
+                break;
+
+            // CONTROL FLOW OPERATIONS (27-35)
+            case JUMP:
+                jump(instruction);
+                break;
+
+            case JUMP_IF_ZERO:
+            case JUMP_IF_NOT_ZERO:
+            case JUMP_IF_EQUAL:
+            case JUMP_IF_NOT_EQUAL:
+            case JUMP_IF_GREATER:
+            case JUMP_IF_LESS:
+                jumpConditional(instruction);
+                break;
+
+            case CALL:
+                call(instruction);
+                break;
+
+            case RETURN:
+                returnFromCall();
+                break;
+
+            // STACK OPERATIONS (36-37)
+            case PUSH:
+                push(operands[0]);
+                break;
+
+            case POP:
+                pop(operands[0]);
+                break;
+
+            // I/O OPERATIONS (38-40)
+            case INPUT:
+                input(operands[0]);
+                break;
+
+            case PRINT_CHAR:
+                printChar(operands[0]);
+                break;
+
+            case PRINT_STRING:
+                printString(operands[0]);
+                break;
+
+            // SPECIAL OPERATIONS (41)
+            case RANDOM:
+                random(operands[0]);
+                break;
+
+            // SUPERINSTRUCTIONS
+            case COMPARE_BRANCH:
+                compareBranch(instruction);
+                break;
+
+            case INCREMENT_COMPARE_BRANCH:
+                incrementCompareBranch(instruction);
+                break;
+
+            case LOAD_PRINT_CHAR:
+                loadPrintChar(instruction);
+                break;
+
+            case MOVE_PAIR:
+                movePair(instruction);
+                break;
+
+            // DEBUG OPERATIONS (42-43)
+            case DEBUG_ON:
+                debugMode = true;
+                break;
+
+            case DEBUG_OFF:
+                debugMode = false;
+                break;
+
+            // BLOCK MEMORY OPERATIONS (44-46)
+            case MEMORY_COPY:
+                memoryCopy(operands[0], operands[1], operands[2]);
+                break;
+
+            case MEMORY_FILL:
+                memoryFill(operands[0], operands[1], operands[2]);
+                break;
+
+            case MEMORY_COMPARE:
+                memoryCompare(operands[0], operands[1], operands[2]);
+                break;
+
+            // I/O OPERATIONS (47)
+            case PRINT_COUNTED_STRING:
+                printCountedString(operands[0]);
+                break;
+
+            case INVALID:
+                throw instruction.error;
+
+            default:
+                output.println("Unknown opcode: " + instruction.opcodeName);
+        }
+    }
+
+    private void reportError(Instruction instruction, Exception e)
+    {
+        output.println("Error executing instruction: " + instruction.text);
+        // Keep stdout and the stderr trace in program order
+        output.flush();
+        e.printStackTrace(errors);
+        if (trace != null)
+        {
+            trace.dump(errors, "error", programCounter);
+        }
+        failed = true;
+        running = false;
+    }
+
+    // Threaded engine: each instruction is bound once to a handler for its
+    // opcode and operand shape, with operands, immediates and jump targets
+    // captured, so executing it is a single call with no further decoding.
+    // Hot shapes (address/address and address/immediate integer operands)
+    // get an inline long fast path; every other case calls the same
+    // helper the switch engine uses, so both engines behave identically.
+    interface Handler
+    {
+        void execute(Tonnyi vm);
+    }
+
+    private static Handler bind(Instruction instruction)
+    {
+        Operand[] operands = instruction.operands;
+        Operand a = operands.length > 0 ? operands[0] : null;
+        Operand b = operands.length > 1 ? operands[1] : null;
+        int target = instruction.target;
+
+        switch (instruction.opcode)
+        {
+            case HALT:
+                return vm -> vm.halt();
+            case NOP:
+                return vm -> { };
+            case DUMP_MEMORY:
+                return vm -> vm.dumpMemory();
+            case PRINT:
+                return vm -> vm.printMemory(a);
+            case LOAD_IMMEDIATE:
+            case LOAD_FROM_MEMORY:
+            case MOV:
+            case STORE:
+            {
+                Operand dest = instruction.opcode == STORE ? b : a;
+                Operand src = instruction.opcode == STORE ? a : b;
+                if (dest.kind == Operand.ADDRESS && src.kind == Operand.ADDRESS)
+                {
+                    int d = dest.address;
+                    int s = src.address;
+                    return vm -> vm.memory.copy(d, s);
+                }
+                if (dest.kind == Operand.ADDRESS && src.isLong)
+                {
+                    int d = dest.address;
+                    long value = src.longValue;
+                    return vm -> vm.memory.setLong(d, value);
+                }
+                return vm -> vm.copyValue(dest, src);
+            }
+            case SWAP:
+                return vm -> vm.swap(a, b);
+            case CLEAR:
+                return vm -> vm.clear(a);
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case MODULO:
+                return bindArithmetic(instruction.opcode, a, b);
+            case DIVIDE:
+                return vm -> vm.arithmeticOperation(a, b, DIVIDE);
+            case INCREMENT:
+                if (a.kind == Operand.ADDRESS)
+                {
+                    int d = a.address;
+                    return vm ->
+                    {
+                        Memory memory = vm.memory;
+                        if (memory.isLong(d) && memory.getLong(d) != Long.MAX_VALUE)
+                        {
+                            memory.setLong(d, memory.getLong(d) + 1);
+                        }
+                        else
+                        {
+                            vm.increment(a);
+                        }
+                    };
+                }
+                return vm -> vm.increment(a);
+            case DECREMENT:
+                if (a.kind == Operand.ADDRESS)
+                {
+                    int d = a.address;
+                    return vm ->
+                    {
+                        Memory memory = vm.memory;
+                        if (memory.isLong(d) && memory.getLong(d) != Long.MIN_VALUE)
+                        {
+                            memory.setLong(d, memory.getLong(d) - 1);
+                        }
+                        else
+                        {
+                            vm.decrement(a);
+                        }
+                    };
+                }
+                return vm -> vm.decrement(a);
+            case POWER:
+                return vm -> vm.powerOperation(a, b);
+            case NEGATE:
+                return vm -> vm.negateOperation(a);
+            case ABSOLUTE:
+                return vm -> vm.absoluteOperation(a);
+            case AND:
+            case OR:
+            case XOR:
+            {
+                int operation = instruction.opcode;
+                return vm -> vm.bitwiseOperation(a, b, operation);
+            }
+            case NOT:
+                return vm -> vm.bitwiseNot(a);
+            case SHIFT_LEFT:
+            case SHIFT_RIGHT:
+            {
+                int direction = instruction.opcode;
+                return vm -> vm.shiftOperation(a, b, direction);
+            }
+            case COMPARE:
+                if (a.kind == Operand.ADDRESS && b.kind == Operand.ADDRESS)
+                {
+                    int x = a.address;
+                    int y = b.address;
+                    return vm ->
+                    {
+                        Memory memory = vm.memory;
+                        if (memory.isLong(x) && memory.isLong(y))
+                        {
+                            vm.comparisonResult = Long.compare(memory.getLong(x), memory.getLong(y));
+                        }
+                        else
+                        {
+                            vm.compare(a, b);
+                        }
+                    };
+                }
+                if (a.kind == Operand.ADDRESS && b.isLong)
+                {
+                    int x = a.address;
+                    long value = b.longValue;
+                    return vm ->
+                    {
+                        Memory memory = vm.memory;
+                        if (memory.isLong(x))
+                        {
+                            vm.comparisonResult = Long.compare(memory.getLong(x), value);
+                        }
+                        else
+                        {
+                            vm.compare(a, b);
+                        }
+                    };
+                }
+                return vm -> vm.compare(a, b);
+            case JUMP:
+            case JUMP_IF_ZERO:
+            case JUMP_IF_NOT_ZERO:
+            case JUMP_IF_EQUAL:
+            case JUMP_IF_NOT_EQUAL:
+            case JUMP_IF_GREATER:
+            case JUMP_IF_LESS:
+                if (target < 0)
+                {
+                    // Unknown label: only fails if the jump is actually taken
+                    if (instruction.opcode == JUMP)
+                    {
+                        return vm -> vm.jump(instruction);
+                    }
+                    return vm -> vm.jumpConditional(instruction);
+                }
+                switch (instruction.opcode)
+                {
+                    case JUMP:
+                        return vm -> vm.programCounter = target;
+                    case JUMP_IF_ZERO:
+                    case JUMP_IF_EQUAL:
+                        return vm ->
+                        {
+                            if (vm.comparisonResult == 0)
+                            {
+                                vm.programCounter = target;
+                            }
+                        };
+                    case JUMP_IF_NOT_ZERO:
+                    case JUMP_IF_NOT_EQUAL:
+                        return vm ->
+                        {
+                            if (vm.comparisonResult != 0)
+                            {
+                                vm.programCounter = target;
+                            }
+                        };
+                    case JUMP_IF_GREATER:
+                        return vm ->
+                        {
+                            if (vm.comparisonResult > 0)
+                            {
+                                vm.programCounter = target;
+                            }
+                        };
+                    default:
+                        return vm ->
+                        {
+                            if (vm.comparisonResult < 0)
+                            {
+                                vm.programCounter = target;
+                            }
+                        };
+                }
+            case CALL:
+                return vm -> vm.call(instruction);
+            case RETURN:
+                return vm -> vm.returnFromCall();
+            case PUSH:
+                return vm -> vm.push(a);
+            case POP:
+                return vm -> vm.pop(a);
+            case INPUT:
+                return vm -> vm.input(a);
+            case PRINT_CHAR:
+                if (a.kind == Operand.ADDRESS)
+                {
+                    int address = a.address;
+                    return vm ->
+                    {
+                        Memory memory = vm.memory;
+                        if (memory.isLong(address))
+                        {
+                            vm.output.print((char) memory.getLong(address));
+                        }
+                        else
+                        {
+                            vm.printChar(a);
+                        }
+                    };
+                }
+                return vm -> vm.printChar(a);
+            case PRINT_STRING:
+                return vm -> vm.printString(a);
+            case RANDOM:
+                return vm -> vm.random(a);
+            case COMPARE_BRANCH:
+                return vm -> vm.compareBranch(instruction);
+            case INCREMENT_COMPARE_BRANCH:
+                return vm -> vm.incrementCompareBranch(instruction);
+            case LOAD_PRINT_CHAR:
+                return vm -> vm.loadPrintChar(instruction);
+            case MOVE_PAIR:
+                return vm -> vm.movePair(instruction);
+            case DEBUG_ON:
+                return vm -> vm.debugMode = true;
+            case DEBUG_OFF:
+                return vm -> vm.debugMode = false;
+            case MEMORY_COPY:
+            {
+                Operand c = operands[2];
+                return vm -> vm.memoryCopy(a, b, c);
+            }
+            case MEMORY_FILL:
+            {
+                Operand c = operands[2];
+                return vm -> vm.memoryFill(a, b, c);
+            }
+            case MEMORY_COMPARE:
+            {
+                Operand c = operands[2];
+                return vm -> vm.memoryCompare(a, b, c);
+            }
+            case PRINT_COUNTED_STRING:
+                return vm -> vm.printCountedString(a);
+            case INVALID:
+            {
+                RuntimeException error = instruction.error;
+                return vm ->
+                {
+                    throw error;
+                };
+            }
+            default:
+            {
+                String message = "Unknown opcode: " + instruction.opcodeName;
+                return vm -> vm.output.println(message);
+            }
+        }
+    }
+
+    // ADD, SUBTRACT, MULTIPLY and MODULO with a long fast path when the
+    // destination is an address and the source an address or integer immediate
+    private static Handler bindArithmetic(int operation, Operand a, Operand b)
+    {
+        if (a.kind != Operand.ADDRESS || (b.kind != Operand.ADDRESS && !b.isLong))
+        {
+            return vm -> vm.arithmeticOperation(a, b, operation);
+        }
+
+        int d = a.address;
+        if (b.kind == Operand.ADDRESS)
+        {
+            int s = b.address;
+            switch (operation)
+            {
+                case ADD:
+                    return vm ->
+                    {
+                        Memory memory = vm.memory;
+                        if (memory.isLong(d) && memory.isLong(s))
+                        {
+                            long x = memory.getLong(d);
+                            long y = memory.getLong(s);
+                            long r = x + y;
+                            if (((x ^ r) & (y ^ r)) >= 0)
+                            {
+                                memory.setLong(d, r);
+                                return;
+                            }
+                        }
+                        vm.arithmeticOperation(a, b, ADD);
+                    };
+                case SUBTRACT:
+                    return vm ->
+                    {
+                        Memory memory = vm.memory;
+                        if (memory.isLong(d) && memory.isLong(s))
+                        {
+                            long x = memory.getLong(d);
+                            long y = memory.getLong(s);
+                            long r = x - y;
+                            if (((x ^ y) & (x ^ r)) >= 0)
+                            {
+                                memory.setLong(d, r);
+                                return;
+                            }
+                        }
+                        vm.arithmeticOperation(a, b, SUBTRACT);
+                    };
+                default:
+                    // MULTIPLY and MODULO: the shared long path handles overflow and zero
+                    return vm ->
+                    {
+                        Memory memory = vm.memory;
+                        if (!memory.isLong(d) || !memory.isLong(s)
+                                || !vm.longArithmetic(a, memory.getLong(d), memory.getLong(s), operation))
+                        {
+                            vm.arithmeticOperation(a, b, operation);
+                        }
+                    };
+            }
+        }
+
+        long y = b.longValue;
+        switch (operation)
+        {
+            case ADD:
+                return vm ->
+                {
+                    Memory memory = vm.memory;
+                    if (memory.isLong(d))
+                    {
+                        long x = memory.getLong(d);
+                        long r = x + y;
+                        if (((x ^ r) & (y ^ r)) >= 0)
+                        {
+                            memory.setLong(d, r);
+                            return;
+                        }
+                    }
+                    vm.arithmeticOperation(a, b, ADD);
+                };
+            case SUBTRACT:
+                return vm ->
+                {
+                    Memory memory = vm.memory;
+                    if (memory.isLong(d))
+                    {
+                        long x = memory.getLong(d);
+                        long r = x - y;
+                        if (((x ^ y) & (x ^ r)) >= 0)
+                        {
+                            memory.setLong(d, r);
+                            return;
+                        }
+                    }
+                    vm.arithmeticOperation(a, b, SUBTRACT);
+                };
+            default:
+                return vm ->
+                {
+                    Memory memory = vm.memory;
+                    if (!memory.isLong(d) || !vm.longArithmetic(a, memory.getLong(d), y, operation))
+                    {
+                        vm.arithmeticOperation(a, b, operation);
+                    }
+                };
+        }
+    }
+
+    // Compiled engine: the whole program is translated into a single JVM
+    // method, int run(Tonnyi vm, int pc), in a class generated at load time.
+    // Every instruction starts at its own bytecode label and an entry
+    // tableswitch maps a pc to its label, so execution can begin anywhere.
+    // Jumps and calls to known labels become JVM branches, and RETURN pops
+    // the return stack and goes back through the tableswitch. Hot operand
+    // shapes call small JitRuntime helpers that HotSpot inlines down to
+    // memory array accesses; every other instruction is handed to
+    // executeInstruction, so semantics and error reporting stay identical.
+    public interface CompiledProgram
+    {
+        // Runs from pc until HALT, an error, or the end of the program; returns the next pc
+        int run(Tonnyi vm, int pc);
+    }
+
+    // Everything generated code calls. The generated class is defined by its
+    // own class loader, so these have to be public.
+    public static final class JitRuntime
+    {
+        private JitRuntime()
+        {
+        }
+
+        // Executes one instruction exactly as the interpreter does; false once the program stopped
+        public static boolean step(Tonnyi vm, int pc)
+        {
+            // Superinstructions are compiled as their first part; HotSpot does its own fusing
+            vm.executeInstruction(vm.program.code[pc].head());
+            return vm.running;
+        }
+
+        public static int comparison(Tonnyi vm)
+        {
+            return vm.comparisonResult;
+        }
+
+        public static void halt(Tonnyi vm)
+        {
+            vm.halt();
+        }
+
+        // Instructions run since the last check; false once a limit stopped the
+        // program. Compiled jumps keep the pc in the method, so they pass it
+        // here for checkpoints to see; -1 when the VM's pc is already current.
+        public static boolean poll(Tonnyi vm, int count, int pc)
+        {
+            if (pc >= 0)
+            {
+                vm.programCounter = pc;
+            }
+            return vm.poll(count);
+        }
+
+        // The pc RETURN continues at, or -1 if it stopped the program
+        public static int returnFromCall(Tonnyi vm, int pc)
+        {
+            vm.executeInstruction(vm.program.code[pc]);
+            return vm.running ? vm.programCounter : -1;
+        }
+
+        public static void copy(Tonnyi vm, int dest, int src)
+        {
+            vm.memory.copy(dest, src);
+        }
+
+        public static void setLong(Tonnyi vm, int dest, long value)
+        {
+            vm.memory.setLong(dest, value);
+        }
+
+        // ADD, SUBTRACT, MULTIPLY or MODULO of two addresses
+        public static boolean arithmetic(Tonnyi vm, int pc, int operation, int dest, int src)
+        {
+            Memory memory = vm.memory;
+            if (memory.isLong(src))
+            {
+                return arithmeticImmediate(vm, pc, operation, dest, memory.getLong(src));
+            }
+            return step(vm, pc);
+        }
+
+        // ADD, SUBTRACT, MULTIPLY or MODULO of an address and an integer immediate
+        public static boolean arithmeticImmediate(Tonnyi vm, int pc, int operation, int dest, long y)
+        {
+            Memory memory = vm.memory;
+            if (memory.isLong(dest))
+            {
+                long x = memory.getLong(dest);
+                try
+                {
+                    switch (operation)
+                    {
+                        case ADD:
+                            memory.setLong(dest, Math.addExact(x, y));
+                            return true;
+                        case SUBTRACT:
+                            memory.setLong(dest, Math.subtractExact(x, y));
+                            return true;
+                        case MULTIPLY:
+                            memory.setLong(dest, Math.multiplyExact(x, y));
+                            return true;
+                        default:
+                            if (y != 0)
+                            {
+                                memory.setLong(dest, x % y);
+                                return true;
+                            }
+                    }
+                }
+                catch (ArithmeticException e)
+                {
+                    // Overflow: let the BigDecimal path produce the exact result
+                }
+            }
+            return step(vm, pc);
+        }
+
+        public static boolean increment(Tonnyi vm, int pc, int address)
+        {
+            Memory memory = vm.memory;
+            if (memory.isLong(address) && memory.getLong(address) != Long.MAX_VALUE)
+            {
+                memory.setLong(address, memory.getLong(address) + 1);
+                return true;
+            }
+            return step(vm, pc);
+        }
+
+        public static boolean decrement(Tonnyi vm, int pc, int address)
+        {
+            Memory memory = vm.memory;
+            if (memory.isLong(address) && memory.getLong(address) != Long.MIN_VALUE)
+            {
+                memory.setLong(address, memory.getLong(address) - 1);
+                return true;
+            }
+            return step(vm, pc);
+        }
+
+        public static boolean compare(Tonnyi vm, int pc, int addr1, int addr2)
+        {
+            Memory memory = vm.memory;
+            if (memory.isLong(addr2))
+            {
+                return compareImmediate(vm, pc, addr1, memory.getLong(addr2));
+            }
+            return step(vm, pc);
+        }
+
+        public static boolean compareImmediate(Tonnyi vm, int pc, int address, long value)
+        {
+            Memory memory = vm.memory;
+            if (memory.isLong(address))
+            {
+                vm.comparisonResult = Long.compare(memory.getLong(address), value);
+                return true;
+            }
+            return step(vm, pc);
+        }
+
+        public static boolean printChar(Tonnyi vm, int pc, int address)
+        {
+            Memory memory = vm.memory;
+            if (memory.isLong(address))
+            {
+                vm.output.print((char) memory.getLong(address));
+                return true;
+            }
+            return step(vm, pc);
+        }
+    }
+
+    // Writes the class file for a compiled program. Version 49 class files
+    // are verified by type inference, so no stack map frames are needed.
+    static final class JitCompiler
+    {
+        private static final String CLASS_NAME = "TonnyiCompiledProgram";
+        private static final String RUNTIME = "Tonnyi$JitRuntime";
+        private static final String VM = "LTonnyi;";
+
+        // JVM opcodes used by the generator
+        private static final int ICONST_0 = 0x03;
+        private static final int LCONST_0 = 0x09;
+        private static final int BIPUSH = 0x10;
+        private static final int SIPUSH = 0x11;
+        private static final int LDC_W = 0x13;
+        private static final int LDC2_W = 0x14;
+        private static final int ILOAD_2 = 0x1c;
+        private static final int ILOAD_3 = 0x1d;
+        private static final int ALOAD_0 = 0x2a;
+        private static final int ALOAD_1 = 0x2b;
+        private static final int ISTORE_2 = 0x3d;
+        private static final int ISTORE_3 = 0x3e;
+        private static final int POP = 0x57;
+        private static final int IINC = 0x84;
+        private static final int IFEQ = 0x99;
+        private static final int IFNE = 0x9a;
+        private static final int IFLT = 0x9b;
+        private static final int IFGE = 0x9c;
+        private static final int IFGT = 0x9d;
+        private static final int IFLE = 0x9e;
+        private static final int IF_ICMPGT = 0xa3;
+        private static final int TABLESWITCH = 0xaa;
+        private static final int IRETURN = 0xac;
+        private static final int RETURN_VOID = 0xb1;
+        private static final int INVOKESPECIAL = 0xb7;
+        private static final int INVOKESTATIC = 0xb8;
+        private static final int GOTO_W = 0xc8;
+
+        private static final int MAX_CODE_LENGTH = 0xFFFF;
+        // Bytes emitted by emitPoll()
+        private static final int POLL_LENGTH = 18;
+        private static final int MAX_CONSTANTS = 0xFFFF;
+
+        private final Instruction[] instructions;
+        // With limits, local 3 counts instructions and backward transfers call poll
+        private final boolean limited;
+        // Label i is instruction i; label n returns n (end of program or stopped)
+        private final int[] labels;
+        private final List<int[]> fixups = new ArrayList<>();
+        private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+        private final Map<String, Integer> constantIndex = new HashMap<>();
+        private int constantCount = 1;
+        private byte[] code = new byte[4096];
+        private int length;
+        // Where RETURN re-enters the method
+        private int entry;
+
+        private JitCompiler(Instruction[] instructions, boolean limited)
+        {
+            this.instructions = instructions;
+            this.limited = limited;
+            this.labels = new int[instructions.length + 1];
+        }
+
+        // Null if the program cannot be compiled (empty, or too large for one method)
+        static CompiledProgram compile(Program program, boolean limited)
+        {
+            if (program.code.length == 0)
+            {
+                return null;
+            }
+
+            byte[] classFile = new JitCompiler(program.code, limited).generate();
+            if (classFile == null)
+            {
+                return null;
+            }
+
+            try
+            {
+                Class<?> type = new Loader().define(classFile);
+                return (CompiledProgram) type.getDeclaredConstructor().newInstance();
+            }
+            catch (ReflectiveOperationException | LinkageError e)
+            {
+                return null;
+            }
+        }
+
+        // One loader per program, so a compiled program is unloaded along with it
+        private static final class Loader extends ClassLoader
+        {
+            Loader()
+            {
+                super(Tonnyi.class.getClassLoader());
+            }
+
+            Class<?> define(byte[] classFile)
+            {
+                return defineClass(CLASS_NAME, classFile, 0, classFile.length);
+            }
+        }
+
+        private byte[] generate()
+        {
+            int n = instructions.length;
+
+            if (limited)
+            {
+                emit(ICONST_0);
+                emit(ISTORE_3);
+            }
+
+            // Entry: dispatch on pc; anything outside the program is returned as is
+            entry = length;
+            emit(ILOAD_2);
+            int switchAt = length;
+            emit(TABLESWITCH);
+            while ((length & 3) != 0)
+            {
+                emit(0);
+            }
+            int defaultAt = length;
+            emitInt(0);
+            emitInt(0);
+            emitInt(n - 1);
+            for (int pc = 0; pc < n; pc++)
+            {
+                fixups.add(new int[] { length, switchAt, pc });
+                emitInt(0);
+            }
+
+            for (int pc = 0; pc < n; pc++)
+            {
+                labels[pc] = length;
+                if (limited)
+                {
+                    emit(IINC);
+                    emit(3);
+                    emit(1);
+                }
+                emitInstruction(pc, instructions[pc].head());
+                if (length > MAX_CODE_LENGTH || constantCount > MAX_CONSTANTS)
+                {
+                    return null;
+                }
+            }
+
+            labels[n] = length;
+            pushInt(n);
+            emit(IRETURN);
+
+            patchInt(defaultAt, length - switchAt);
+            emit(ILOAD_2);
+            emit(IRETURN);
+            if (length > MAX_CODE_LENGTH || constantCount > MAX_CONSTANTS)
+            {
+                return null;
+            }
+
+            for (int[] fixup : fixups)
+            {
+                patchInt(fixup[0], labels[fixup[2]] - fixup[1]);
+            }
+            return classFile();
+        }
+
+        private void emitInstruction(int pc, Instruction instruction)
+        {
+            Operand[] operands = instruction.operands;
+            Operand a = operands.length > 0 ? operands[0] : null;
+            Operand b = operands.length > 1 ? operands[1] : null;
+            int end = instructions.length;
+
+            switch (instruction.opcode)
+            {
+                case NOP:
+                    return;
+                case HALT:
+                    emit(ALOAD_1);
+                    invoke("halt", "(" + VM + ")V");
+                    jump(end);
+                    return;
+                case LOAD_IMMEDIATE:
+                case LOAD_FROM_MEMORY:
+                case MOV:
+                case STORE:
+                {
+                    Operand dest = instruction.opcode == STORE ? b : a;
+                    Operand src = instruction.opcode == STORE ? a : b;
+                    if (dest.kind == Operand.ADDRESS && src.kind == Operand.ADDRESS)
+                    {
+                        emit(ALOAD_1);
+                        pushInt(dest.address);
+                        pushInt(src.address);
+                        invoke("copy", "(" + VM + "II)V");
+                        return;
+                    }
+                    if (dest.kind == Operand.ADDRESS && src.isLong)
+                    {
+                        emit(ALOAD_1);
+                        pushInt(dest.address);
+                        pushLong(src.longValue);
+                        invoke("setLong", "(" + VM + "IJ)V");
+                        return;
+                    }
+                    break;
+                }
+                case ADD:
+                case SUBTRACT:
+                case MULTIPLY:
+                case MODULO:
+                    if (a.kind == Operand.ADDRESS && b.kind == Operand.ADDRESS)
+                    {
+                        emit(ALOAD_1);
+                        pushInt(pc);
+                        pushInt(instruction.opcode);
+                        pushInt(a.address);
+                        pushInt(b.address);
+                        invoke("arithmetic", "(" + VM + "IIII)Z");
+                        stopUnlessRunning();
+                        return;
+                    }
+                    if (a.kind == Operand.ADDRESS && b.isLong)
+                    {
+                        emit(ALOAD_1);
+                        pushInt(pc);
+                        pushInt(instruction.opcode);
+                        pushInt(a.address);
+                        pushLong(b.longValue);
+                        invoke("arithmeticImmediate", "(" + VM + "IIIJ)Z");
+                        stopUnlessRunning();
+                        return;
+                    }
+                    break;
+                case INCREMENT:
+                case DECREMENT:
+                case PRINT_CHAR:
+                    if (a.kind == Operand.ADDRESS)
+                    {
+                        emit(ALOAD_1);
+                        pushInt(pc);
+                        pushInt(a.address);
+                        String helper = instruction.opcode == INCREMENT ? "increment"
+                                : instruction.opcode == DECREMENT ? "decrement" : "printChar";
+                        invoke(helper, "(" + VM + "II)Z");
+                        stopUnlessRunning();
+                        return;
+                    }
+                    break;
+                case COMPARE:
+                    if (a.kind == Operand.ADDRESS && b.kind == Operand.ADDRESS)
+                    {
+                        emit(ALOAD_1);
+                        pushInt(pc);
+                        pushInt(a.address);
+                        pushInt(b.address);
+                        invoke("compare", "(" + VM + "III)Z");
+                        stopUnlessRunning();
+                        return;
+                    }
+                    if (a.kind == Operand.ADDRESS && b.isLong)
+                    {
+                        emit(ALOAD_1);
+                        pushInt(pc);
+                        pushInt(a.address);
+                        pushLong(b.longValue);
+                        invoke("compareImmediate", "(" + VM + "IIJ)Z");
+                        stopUnlessRunning();
+                        return;
+                    }
+                    break;
+                case JUMP:
+                case JUMP_IF_ZERO:
+                case JUMP_IF_NOT_ZERO:
+                case JUMP_IF_EQUAL:
+                case JUMP_IF_NOT_EQUAL:
+                case JUMP_IF_GREATER:
+                case JUMP_IF_LESS:
+                    // Unknown labels fall through to the interpreter, which reports them when taken
+                    if (instruction.target < 0)
+                    {
+                        break;
+                    }
+                    boolean backward = limited && instruction.target <= pc;
+                    if (instruction.opcode != JUMP)
+                    {
+                        emit(ALOAD_1);
+                        invoke("comparison", "(" + VM + ")I");
+                        // Skip the jump unless the condition holds
+                        emit(skipUnless(instruction.opcode));
+                        emitShort(backward ? 8 + POLL_LENGTH : 8);
+                    }
+                    if (backward)
+                    {
+                        emitPoll(instruction.target);
+                    }
+                    jump(instruction.target);
+                    return;
+                case CALL:
+                    if (instruction.target < 0)
+                    {
+                        break;
+                    }
+                    // Pushes the return address, which fails past the depth limit; the jump itself is a branch
+                    emit(ALOAD_1);
+                    pushInt(pc);
+                    invoke("step", "(" + VM + "I)Z");
+                    stopUnlessRunning();
+                    if (limited && instruction.target <= pc)
+                    {
+                        // step() has already moved the pc to the target
+                        emitPoll(-1);
+                    }
+                    jump(instruction.target);
+                    return;
+                case RETURN:
+                    emit(ALOAD_1);
+                    pushInt(pc);
+                    invoke("returnFromCall", "(" + VM + "I)I");
+                    emit(ISTORE_2);
+                    emit(ILOAD_2);
+                    emit(IFGE);
+                    emitShort(8);
+                    jump(end);
+                    if (limited)
+                    {
+                        // Only a return to an earlier pc is a backward transfer
+                        emit(ILOAD_2);
+                        pushInt(pc);
+                        emit(IF_ICMPGT);
+                        emitShort(3 + POLL_LENGTH);
+                        emitPoll(-1);
+                    }
+                    // Back to the entry tableswitch with the new pc
+                    int at = length;
+                    emit(GOTO_W);
+                    emitInt(entry - at);
+                    return;
+                default:
+                    break;
+            }
+
+            emit(ALOAD_1);
+            pushInt(pc);
+            invoke("step", "(" + VM + "I)Z");
+            stopUnlessRunning();
+        }
+
+        // Branch opcode that skips a jump when its condition on the comparison result fails
+        private static int skipUnless(int opcode)
+        {
+            switch (opcode)
+            {
+                case JUMP_IF_ZERO:
+                case JUMP_IF_EQUAL:
+                    return IFNE;
+                case JUMP_IF_NOT_ZERO:
+                case JUMP_IF_NOT_EQUAL:
+                    return IFEQ;
+                case JUMP_IF_GREATER:
+                    return IFLE;
+                default:
+                    return IFGE;
+            }
+        }
+
+        // Hands the instruction count and the pc execution continues at (-1
+        // if the VM already has it) to the VM and leaves the method if a
+        // limit stopped the program. Always POLL_LENGTH bytes long.
+        private void emitPoll(int target)
+        {
+            emit(ALOAD_1);
+            emit(ILOAD_3);
+            if (target == (short) target)
+            {
+                emit(SIPUSH);
+                emitShort(target);
+            }
+            else
+            {
+                emit(LDC_W);
+                emitShort(constant("I" + target, 3, 1, target));
+            }
+            invoke("poll", "(" + VM + "II)Z");
+            emit(ICONST_0);
+            emit(ISTORE_3);
+            stopUnlessRunning();
+        }
+
+        // The helper's result is on the stack: leave the method if it stopped the program
+        private void stopUnlessRunning()
+        {
+            emit(IFNE);
+            emitShort(8);
+            jump(instructions.length);
+        }
+
+        private void jump(int label)
+        {
+            fixups.add(new int[] { length + 1, length, label });
+            emit(GOTO_W);
+            emitInt(0);
+        }
+
+        private void invoke(String name, String descriptor)
+        {
+            emit(INVOKESTATIC);
+            emitShort(methodRef(RUNTIME, name, descriptor));
+        }
+
+        private void pushInt(int value)
+        {
+            if (value >= -1 && value <= 5)
+            {
+                emit(ICONST_0 + value);
+            }
+            else if (value == (byte) value)
+            {
+                emit(BIPUSH);
+                emit(value);
+            }
+            else if (value == (short) value)
+            {
+                emit(SIPUSH);
+                emitShort(value);
+            }
+            else
+            {
+                emit(LDC_W);
+                emitShort(constant("I" + value, 3, 1, value));
+            }
+        }
+
+        private void pushLong(long value)
+        {
+            if (value == 0 || value == 1)
+            {
+                emit(LCONST_0 + (int) value);
+            }
+            else
+            {
+                emit(LDC2_W);
+                emitShort(constant("J" + value, 5, 2, value));
+            }
+        }
+
+        private void emit(int b)
+        {
+            if (length == code.length)
+            {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte) b;
+        }
+
+        private void emitShort(int value)
+        {
+            emit(value >>> 8);
+            emit(value);
+        }
+
+        private void emitInt(int value)
+        {
+            emitShort(value >>> 16);
+            emitShort(value);
+        }
+
+        private void patchInt(int at, int value)
+        {
+            code[at] = (byte) (value >>> 24);
+            code[at + 1] = (byte) (value >>> 16);
+            code[at + 2] = (byte) (value >>> 8);
+            code[at + 3] = (byte) value;
+        }
+
+        // Constant pool
+
+        private int utf8(String value)
+        {
+            Integer index = constantIndex.get("U" + value);
+            if (index != null)
+            {
+                return index;
+            }
+            try
+            {
+                DataOutputStream out = new DataOutputStream(constants);
+                out.writeByte(1);
+                out.writeUTF(value);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            constantIndex.put("U" + value, constantCount);
+            return constantCount++;
+        }
+
+        private int classRef(String name)
+        {
+            return constant("C" + name, 7, 1, utf8(name));
+        }
+
+        private int methodRef(String owner, String name, String descriptor)
+        {
+            int type = classRef(owner);
+            int nameAndType = constant("N" + name + descriptor, 12, 1,
+                    ((long) utf8(name) << 16) | utf8(descriptor));
+            return constant("M" + owner + "." + name + descriptor, 10, 1, ((long) type << 16) | nameAndType);
+        }
+
+        // Tags 7 (u2), 3 and 10/12 (u4) and 5 (u8); 'slots' is 2 for longs
+        private int constant(String key, int tag, int slots, long value)
+        {
+            Integer index = constantIndex.get(key);
+            if (index != null)
+            {
+                return index;
+            }
+            constants.write(tag);
+            int bytes = tag == 7 ? 2 : tag == 5 ? 8 : 4;
+            for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8)
+            {
+                constants.write((int) (value >>> shift));
+            }
+            constantIndex.put(key, constantCount);
+            int result = constantCount;
+            constantCount += slots;
+            return result;
+        }
+
+        private byte[] classFile()
+        {
+            int thisClass = classRef(CLASS_NAME);
+            int superClass = classRef("java/lang/Object");
+            int iface = classRef("Tonnyi$CompiledProgram");
+            int superInit = methodRef("java/lang/Object", "<init>", "()V");
+            int codeName = utf8("Code");
+            int initName = utf8("<init>");
+            int initDescriptor = utf8("()V");
+            int runName = utf8("run");
+            int runDescriptor = utf8("(" + VM + "I)I");
+            if (constantCount > MAX_CONSTANTS)
+            {
+                return null;
+            }
+
+            try
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(length + constants.size() + 256);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(constantCount);
+                constants.writeTo(out);
+                out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(iface);
+                out.writeShort(0);
+
+                out.writeShort(2);
+                byte[] init = { (byte) ALOAD_0, (byte) INVOKESPECIAL,
+                        (byte) (superInit >>> 8), (byte) superInit, (byte) RETURN_VOID };
+                writeMethod(out, initName, initDescriptor, codeName, 1, 1, init, init.length);
+                // Locals: this, vm, pc. The deepest push is vm, pc, operation, address and a long
+                writeMethod(out, runName, runDescriptor, codeName, 6, limited ? 4 : 3, code, length);
+
+                out.writeShort(0);
+                return bytes.toByteArray();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void writeMethod(DataOutputStream out, int name, int descriptor, int codeName,
+                                        int maxStack, int maxLocals, byte[] code, int length) throws IOException
+        {
+            out.writeShort(0x0001);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+    }
+
+    private static String[] parseOperands(String operandString)
+    {
+        return operandString.split("[,\\s]+");
+    }
+
+    // 0x followed by exactly four hex digits
+    private static boolean isValidAddress(String address)
+    {
+        if (address.length() != 6 || !address.startsWith("0x"))
+        {
+            return false;
+        }
+        for (int i = 2; i < 6; i++)
+        {
+            char c = address.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'A' && c <= 'F') && !(c >= 'a' && c <= 'f'))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void reportInvalidAddress(String address)
+    {
+        output.println("Error: Invalid address format '" + address + "'. Must be 4-digit hex (0x0000-0xFFFF)");
+    }
+
+    private BigDecimal getValue(Operand operand)
+    {
+        switch (operand.kind)
+        {
+            case Operand.ADDRESS:
+                return memory.get(operand.address);
+
+            case Operand.IMMEDIATE:
+                return operand.value;
+
+            case Operand.BAD_NUMBER:
+                output.println("Error: Invalid number format '" + operand.text + "'");
+                return BigDecimal.ZERO;
+
+            default:
+                reportInvalidAddress(operand.text);
+                output.println("Error: Unexpected memory address: " + operand.text);
+                return BigDecimal.ZERO;
+        }
+    }
+
+    private void setValue(Operand address, BigDecimal value)
+    {
+        if (address.kind == Operand.ADDRESS)
+        {
+            memory.set(address.address, value);
+        }
+        else
+        {
+            reportInvalidAddress(address.text);
+            output.println("Error: Cannot access memory address: " + address.text);
+        }
+    }
+
+    // Fast path: true when the operand currently holds an integer that fits in a long
+    private boolean isLong(Operand operand)
+    {
+        return operand.kind == Operand.ADDRESS ? memory.isLong(operand.address) : operand.isLong;
+    }
+
+    // Only valid after isLong(operand) returned true
+    private long getLong(Operand operand)
+    {
+        return operand.kind == Operand.ADDRESS ? memory.getLong(operand.address) : operand.longValue;
+    }
+
+    private void setLong(Operand address, long value)
+    {
+        if (address.kind == Operand.ADDRESS)
+        {
+            memory.setLong(address.address, value);
+        }
+        else
+        {
+            setValue(address, BigDecimal.valueOf(value));
+        }
+    }
+
+    // Memory Operations
+    private void printMemory(Operand address)
+    {
+        String value = isLong(address) ? Long.toString(getLong(address)) : getValue(address).toString();
+        if (debugMode)
+        {
+            output.println("Memory[" + address.text + "] = " + value);
+        }
+        else
+        {
+            output.println(value);
+        }
+    }
+
+    private void loadImmediate(Operand address, Operand value)
+    {
+        copyValue(address, value);
+    }
+
+    private void loadFromMemory(Operand dest, Operand src)
+    {
+        copyValue(dest, src);
+    }
+
+    private void storeMemory(Operand src, Operand dest)
+    {
+        copyValue(dest, src);
+    }
+
+    private void moveData(Operand dest, Operand src)
+    {
+        copyValue(dest, src);
+    }
+
+    private void copyValue(Operand dest, Operand src)
+    {
+        if (dest.kind == Operand.ADDRESS && src.kind == Operand.ADDRESS)
+        {
+            memory.copy(dest.address, src.address);
+        }
+        else if (isLong(src))
+        {
+            setLong(dest, getLong(src));
+        }
+        else
+        {
+            setValue(dest, getValue(src));
+        }
+    }
+
+    // Arithmetic Operations
+    private void arithmeticOperation(Operand dest, Operand src, int operation)
+    {
+        if (isLong(dest) && isLong(src) && longArithmetic(dest, getLong(dest), getLong(src), operation))
+        {
+            return;
+        }
+
+        try
+        {
+            BigDecimal val1 = getValue(dest);
+            BigDecimal val2 = getValue(src);
+            BigDecimal result = BigDecimal.ZERO;
+
+            switch (operation)
+            {
+                case ADD:
+                    result = val1.add(val2);
+                    break;
+                case SUBTRACT:
+                    result = val1.subtract(val2);
+                    break;
+                case MULTIPLY:
+                    result = val1.multiply(val2);
+                    break;
+                case DIVIDE:
+                    if (val2.compareTo(BigDecimal.ZERO) == 0)
+                    {
+                        output.println("Error: Division by zero");
+                        result = BigDecimal.ZERO;
+                    }
+                    else
+                    {
+                        result = val1.divide(val2, 32, RoundingMode.HALF_UP);
+                    }
+                    break;
+                case MODULO:
+                    if (val2.compareTo(BigDecimal.ZERO) == 0)
+                    {
+                        output.println("Error: Modulo by zero");
+                        result = BigDecimal.ZERO;
+                    }
+                    else
+                    {
+                        result = val1.remainder(val2);
+                    }
+                    break;
+            }
+
+            setValue(dest, result);
+        }
+        catch (Exception e)
+        {
+            output.println("Error in arithmetic operation: " + e.getMessage());
+        }
+    }
+
+    // Integer fast path; returns false (leaving dest untouched) when the result
+    // overflows a long or is not an integer, so the BigDecimal path takes over
+    private boolean longArithmetic(Operand dest, long val1, long val2, int operation)
+    {
+        try
+        {
+            switch (operation)
+            {
+                case ADD:
+                    setLong(dest, Math.addExact(val1, val2));
+                    return true;
+                case SUBTRACT:
+                    setLong(dest, Math.subtractExact(val1, val2));
+                    return true;
+                case MULTIPLY:
+                    setLong(dest, Math.multiplyExact(val1, val2));
+                    return true;
+                case MODULO:
+                    if (val2 == 0)
+                    {
+                        return false;
+                    }
+                    setLong(dest, val1 % val2);
+                    return true;
+                default:
+                    // DIVIDE always produces a 32-digit scale
+                    return false;
+            }
+        }
+        catch (ArithmeticException e)
+        {
+            return false;
+        }
+    }
+
+    private void increment(Operand address)
+    {
+        if (isLong(address) && getLong(address) != Long.MAX_VALUE)
+        {
+            setLong(address, getLong(address) + 1);
+            return;
+        }
+        setValue(address, getValue(address).add(BigDecimal.ONE));
+    }
+
+    private void decrement(Operand address)
+    {
+        if (isLong(address) && getLong(address) != Long.MIN_VALUE)
+        {
+            setLong(address, getLong(address) - 1);
+            return;
+        }
+        setValue(address, getValue(address).subtract(BigDecimal.ONE));
+    }
+
+    // Bitwise Operations
+    private void bitwiseOperation(Operand dest, Operand src, int operation)
+    {
+        if (isLong(dest) && isLong(src))
+        {
+            long long1 = getLong(dest);
+            long long2 = getLong(src);
+            setLong(dest, operation == AND ? long1 & long2 : operation == OR ? long1 | long2 : long1 ^ long2);
+            return;
+        }
+
+        BigDecimal val1 = getValue(dest);
+        BigDecimal val2 = getValue(src);
+
+        BigInteger bigInt1 = val1.toBigInteger();
+        BigInteger bigInt2 = val2.toBigInteger();
+        BigInteger result = BigInteger.ZERO;
+
+        switch (operation)
+        {
+            case AND:
+                result = bigInt1.and(bigInt2);
+                break;
+            case OR:
+                result = bigInt1.or(bigInt2);
+                break;
+            case XOR:
+                result = bigInt1.xor(bigInt2);
+                break;
+        }
+
+        setValue(dest, new BigDecimal(result));
+    }
+
+    private void bitwiseNot(Operand address)
+    {
+        if (isLong(address))
+        {
+            setLong(address, ~getLong(address));
+            return;
+        }
+
+        BigDecimal value = getValue(address);
+        BigInteger bigValue = value.toBigInteger();
+        setValue(address, new BigDecimal(bigValue.not()));
+    }
+
+    private void shiftOperation(Operand dest, Operand src, int direction)
+    {
+        if (isLong(dest) && isLong(src))
+        {
+            long bits = getLong(dest);
+            int amount = (int) getLong(src);
+            if (direction == SHIFT_RIGHT && amount >= 0)
+            {
+                setLong(dest, amount < 64 ? bits >> amount : bits >> 63);
+                return;
+            }
+            if (direction == SHIFT_LEFT && amount >= 0 && amount < 64 && (bits << amount) >> amount == bits)
+            {
+                setLong(dest, bits << amount);
+                return;
+            }
+        }
+
+        BigDecimal value = getValue(dest);
+        BigDecimal shift = getValue(src);
+
+        BigInteger bigValue = value.toBigInteger();
+        int shiftAmount = shift.intValue();
+        long growth = direction == SHIFT_LEFT ? shiftAmount : -(long) shiftAmount;
+        if (growth > 0 && bigValue.signum() != 0 && exceedsResultSize(bigValue.bitLength() + growth))
+        {
+            return;
+        }
+
+        if (direction == SHIFT_LEFT)
+        {
+            setValue(dest, new BigDecimal(bigValue.shiftLeft(shiftAmount)));
+        }
+        else
+        {
+            setValue(dest, new BigDecimal(bigValue.shiftRight(shiftAmount)));
+        }
+    }
+
+    // Comparison
+    private void compare(Operand addr1, Operand addr2)
+    {
+        if (isLong(addr1) && isLong(addr2))
+        {
+            comparisonResult = Long.compare(getLong(addr1), getLong(addr2));
+            return;
+        }
+
+        BigDecimal val1 = getValue(addr1);
+        BigDecimal val2 = getValue(addr2);
+        comparisonResult = val1.compareTo(val2);
+    }
+
+    // Control Flow
+    private void jump(Instruction instruction)
+    {
+        if (instruction.target >= 0)
+        {
+            programCounter = instruction.target;
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown label: " + instruction.operands[0].text);
+        }
+    }
+
+    // POWER operation: dest = dest ^ src
+    private void powerOperation(Operand dest, Operand src)
+    {
+        BigDecimal base = getValue(dest);
+        BigDecimal exponent = getValue(src);
+
+        if (exponent.remainder(BigDecimal.ONE).compareTo(BigDecimal.ZERO) == 0)
+        {
+            // Integer exponent - use BigDecimal's pow() for perfect precision
+            try
+            {
+                int power = exponent.intValueExact();
+                // Bases with an unscaled value of 0 or 1 (0, 1, 0.01, ...) never grow
+                if (base.unscaledValue().abs().bitLength() > 1
+                        && exceedsResultSize((long) power * base.unscaledValue().bitLength()))
+                {
+                    return;
+                }
+                setValue(dest, base.pow(power));
+            }
+            catch (ArithmeticException e)
+            {
+                output.println("Error: Exponent too large for integer power operation");
+                setValue(dest, BigDecimal.ZERO);
+            }
+        }
+        else
+        {
+            // Decimal exponent - use log/exp method for better precision
+            try
+            {
+                // dest = e^(exponent * ln(base))
+                BigDecimal result = BigDecimal.valueOf(
+                    Math.exp(exponent.doubleValue() * Math.log(base.doubleValue()))
+                );
+                setValue(dest, result);
+            }
+            catch (Exception e)
+            {
+                output.println("Error in power operation: " + e.getMessage());
+                setValue(dest, BigDecimal.ZERO);
+            }
+        }
+    }
+
+    // NEGATE operation: address = -address
+    private void negateOperation(Operand address)
+    {
+        if (isLong(address) && getLong(address) != Long.MIN_VALUE)
+        {
+            setLong(address, -getLong(address));
+            return;
+        }
+
+        BigDecimal value = getValue(address);
+        setValue(address, value.negate());
+    }
+
+    // ABSOLUTE operation: address = |address|
+    private void absoluteOperation(Operand address)
+    {
+        if (isLong(address) && getLong(address) != Long.MIN_VALUE)
+        {
+            setLong(address, Math.abs(getLong(address)));
+            return;
+        }
+
+        BigDecimal value = getValue(address);
+        setValue(address, value.abs());
+    }
+    private void jumpConditional(Instruction instruction)
+    {
+        if (conditionHolds(instruction.opcode))
+        {
+            jump(instruction);
+        }
+    }
+
+    private boolean conditionHolds(int opcode)
+    {
+        switch (opcode)
+        {
+            case JUMP_IF_ZERO:
+            case JUMP_IF_EQUAL:
+                return comparisonResult == 0;
+            case JUMP_IF_NOT_ZERO:
+            case JUMP_IF_NOT_EQUAL:
+                return comparisonResult != 0;
+            case JUMP_IF_GREATER:
+                return comparisonResult > 0;
+            case JUMP_IF_LESS:
+                return comparisonResult < 0;
+            default:
+                return false;
+        }
+    }
+
+    // Superinstructions. The instructions a superinstruction covers still
+    // follow it, so when an operand is not a plain long only the first part
+    // runs here and execution carries on with the original next instruction.
+
+    // COMPARE a b; Jcc label
+    private void compareBranch(Instruction instruction)
+    {
+        Operand[] operands = instruction.operands;
+        if (!isLong(operands[0]) || !isLong(operands[1]))
+        {
+            compare(operands[0], operands[1]);
+            return;
+        }
+        comparisonResult = Long.compare(getLong(operands[0]), getLong(operands[1]));
+        Instruction branch = instruction.parts[1];
+        programCounter = conditionHolds(branch.opcode) ? branch.target : programCounter + 1;
+    }
+
+    // INCREMENT counter; COMPARE a b; Jcc label
+    private void incrementCompareBranch(Instruction instruction)
+    {
+        Operand counter = instruction.operands[0];
+        if (!isLong(counter) || getLong(counter) == Long.MAX_VALUE)
+        {
+            increment(counter);
+            return;
+        }
+        setLong(counter, getLong(counter) + 1);
+
+        Operand[] compared = instruction.parts[1].operands;
+        if (isLong(compared[0]) && isLong(compared[1]))
+        {
+            comparisonResult = Long.compare(getLong(compared[0]), getLong(compared[1]));
+            Instruction branch = instruction.parts[2];
+            programCounter = conditionHolds(branch.opcode) ? branch.target : programCounter + 2;
+        }
+    }
+
+    // LOAD_IMMEDIATE address #value; PRINT_CHAR address
+    private void loadPrintChar(Instruction instruction)
+    {
+        long value = instruction.operands[1].longValue;
+        setLong(instruction.operands[0], value);
+        output.print((char) value);
+        programCounter++;
+    }
+
+    // Two copies between addresses and immediates
+    private void movePair(Instruction instruction)
+    {
+        Instruction first = instruction.parts[0];
+        Instruction second = instruction.parts[1];
+        copyValue(first.destination(), first.source());
+        copyValue(second.destination(), second.source());
+        programCounter++;
+    }
+
+    private void call(Instruction instruction)
+    {
+        // Return addresses are source line numbers, as they were before decoding
+        if (!returnStack.push(instruction.line + 1))
+        {
+            exceed(Limit.CALL_DEPTH);
+            return;
+        }
+        if (callEvents != null)
+        {
+            beginCallEvent(instruction);
+        }
+        jump(instruction);
+    }
+
+    private void returnFromCall()
+    {
+        if (!returnStack.isEmpty())
+        {
+            if (callEvents != null)
+            {
+                endCallEvent();
+            }
+            programCounter = program.pcForLine(returnStack.pop());
+        }
+        else
+        {
+            running = false;
+        }
+    }
+
+    private void beginCallEvent(Instruction instruction)
+    {
+        int depth = returnStack.depth();
+        if (depth > callEvents.length)
+        {
+            callEvents = Arrays.copyOf(callEvents, Math.max(depth, callEvents.length * 2));
+        }
+        CallEvent event = new CallEvent();
+        event.label = instruction.operands[0].text;
+        event.depth = depth;
+        event.begin();
+        callEvents[depth - 1] = event;
+    }
+
+    private void endCallEvent()
+    {
+        int depth = returnStack.depth();
+        CallEvent event = depth <= callEvents.length ? callEvents[depth - 1] : null;
+        if (event != null)
+        {
+            callEvents[depth - 1] = null;
+            event.end();
+            if (event.shouldCommit())
+            {
+                event.commit();
+            }
+        }
+    }
+
+    private void halt()
+    {
+        running = false;
+        output.flush();
+    }
+
+    // Stack Operations
+    private void push(Operand address)
+    {
+        dataStack.push(getValue(address));
+    }
+
+    private void pop(Operand address)
+    {
+        try
+        {
+            if (!dataStack.isEmpty())
+            {
+                setValue(address, dataStack.pop());
+            }
+            else
+            {
+                output.println("Error: Stack underflow - cannot pop from empty stack");
+            }
+        }
+        catch (Exception e)
+        {
+            output.println("Error in pop operation: " + e.getMessage());
+        }
+    }
+
+    private void pushAll()
+    {
+        for (int address = memory.nextTouched(0); address >= 0; address = memory.nextTouched(address + 1))
+        {
+            dataStack.push(memory.get(address));
+        }
+    }
+
+    private void popAll()
+    {
+        for (int address = memory.nextTouched(0); address >= 0; address = memory.nextTouched(address + 1))
+        {
+            if (!dataStack.isEmpty())
+            {
+                memory.set(address, dataStack.pop());
+            }
+        }
+    }
+
+    // I/O Operations
+    private void input(Operand address)
+    {
+        // Make sure any prompt is visible before blocking on stdin
+        output.flush();
+        InputEvent event = FlightRecorder.isInitialized() ? new InputEvent() : null;
+        if (event != null)
+        {
+            event.begin();
+        }
+        try
+        {
+            boolean read = stdin.read();
+            if (event != null)
+            {
+                event.end();
+            }
+            if (event != null && event.shouldCommit())
+            {
+                event.tokens = stdin.tokens;
+                event.commit();
+            }
+            if (read)
+            {
+                setLong(address, stdin.longValue);
+            }
+            else
+            {
+                setValue(address, stdin.bigValue);
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            output.println("Error: Invalid number format. Please enter a valid number.");
+        }
+    }
+
+    private void printChar(Operand address)
+    {
+        int charValue = isLong(address) ? (int) getLong(address) : getValue(address).intValue();
+        output.print((char) charValue);
+    }
+
+    private void printString(Operand startAddress)
+    {
+        if (!startAddress.text.startsWith("0x"))
+        {
+            output.println("Error: Invalid string starting address '" + startAddress.text + "'");
+            return;
+        }
+
+        try
+        {
+            int baseAddr = startAddress.kind == Operand.ADDRESS
+                    ? startAddress.address
+                    : Integer.parseInt(startAddress.text.substring(2), 16);
+            // Up to the terminator, or to the end of memory if there is none
+            int end = baseAddr >= 0 && baseAddr < Memory.SIZE ? memory.terminator(baseAddr) : baseAddr;
+            printCells(baseAddr, end - baseAddr);
+            if (end < 0 || end >= Memory.SIZE)
+            {
+                String addressText = String.format("0x%04X", end);
+                reportInvalidAddress(addressText);
+                output.println("Error: String access beyond memory bounds at " + addressText);
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            output.println("Error: Invalid address in printString '" + startAddress.text + "'");
+        }
+        catch (Exception e)
+        {
+            output.println("Error in printString: " + e.getMessage());
+        }
+    }
+
+    // The cell at the address holds the length and the characters follow it,
+    // so nothing is scanned and zero cells print like any other
+    private void printCountedString(Operand address)
+    {
+        if (address.kind != Operand.ADDRESS)
+        {
+            reportInvalidAddress(address.text);
+            output.println("Error: Cannot access memory address: " + address.text);
+            return;
+        }
+        int count = blockLength(address);
+        if (count < 0)
+        {
+            return;
+        }
+        if (address.address + 1 + count > Memory.SIZE)
+        {
+            output.println("Error: String of " + count + " characters at " + address.text + " runs past the end of memory");
+            return;
+        }
+        printCells(address.address + 1, count);
+    }
+
+    // Cells converted as PRINT CHAR does and written to the output in one call
+    private void printCells(int from, int count)
+    {
+        if (count <= 0)
+        {
+            return;
+        }
+        if (stringChars.length < count)
+        {
+            stringChars = new char[Math.max(count, stringChars.length * 2)];
+        }
+        memory.readChars(from, count, stringChars);
+        output.print(stringChars, 0, count);
+    }
+
+    // Special Operations
+    private void random(Operand address)
+    {
+        BigDecimal randomValue = new BigDecimal(Math.random() * 100);
+        setValue(address, randomValue);
+    }
+
+    private void swap(Operand addr1, Operand addr2)
+    {
+        if (addr1.kind == Operand.ADDRESS && addr2.kind == Operand.ADDRESS)
+        {
+            memory.swap(addr1.address, addr2.address);
+            return;
+        }
+
+        BigDecimal temp = getValue(addr1);
+        setValue(addr1, getValue(addr2));
+        setValue(addr2, temp);
+    }
+
+    private void clear(Operand address)
+    {
+        setLong(address, 0);
+    }
+
+    // Block Memory Operations: the whole range is checked before any cell is touched
+    private void memoryCopy(Operand dest, Operand src, Operand length)
+    {
+        int count = blockLength(length);
+        if (count >= 0 && isBlock(dest, count) && isBlock(src, count))
+        {
+            memory.copyRange(dest.address, src.address, count);
+        }
+    }
+
+    private void memoryFill(Operand dest, Operand value, Operand length)
+    {
+        int count = blockLength(length);
+        if (count >= 0 && isBlock(dest, count))
+        {
+            if (isLong(value))
+            {
+                memory.fillLong(dest.address, count, getLong(value));
+            }
+            else
+            {
+                memory.fill(dest.address, count, getValue(value));
+            }
+        }
+    }
+
+    private void memoryCompare(Operand addr1, Operand addr2, Operand length)
+    {
+        int count = blockLength(length);
+        if (count >= 0 && isBlock(addr1, count) && isBlock(addr2, count))
+        {
+            comparisonResult = memory.compareRange(addr1.address, addr2.address, count);
+        }
+    }
+
+    // Number of cells in a block, or -1 after reporting a bad length
+    private int blockLength(Operand length)
+    {
+        BigDecimal value = isLong(length) ? BigDecimal.valueOf(getLong(length)) : getValue(length);
+        if (value.signum() < 0 || value.compareTo(BigDecimal.valueOf(Memory.SIZE)) > 0
+                || value.stripTrailingZeros().scale() > 0)
+        {
+            output.println("Error: Invalid block length '" + value + "'. Must be a whole number from 0 to " + Memory.SIZE);
+            return -1;
+        }
+        return value.intValue();
+    }
+
+    private boolean isBlock(Operand start, int count)
+    {
+        if (start.kind != Operand.ADDRESS)
+        {
+            reportInvalidAddress(start.text);
+            output.println("Error: Cannot access memory address: " + start.text);
+            return false;
+        }
+        if (start.address + count > Memory.SIZE)
+        {
+            output.println("Error: Block of " + count + " cells at " + start.text + " runs past the end of memory");
+            return false;
+        }
+        return true;
+    }
+
+    private void dumpMemory()
+    {
+        if (debugMode)
+        {
+            output.println("\n=== Memory Dump ===");
+            for (int address = memory.nextTouched(0); address >= 0; address = memory.nextTouched(address + 1))
+            {
+                output.println(String.format("0x%04X", address) + ": " + memory.get(address));
+            }
+            output.println("==================\n");
+        }
+        // In normal mode, do nothing (no output)
+    }
+
+    // Buffered program output. Characters are encoded straight into a byte
+    // buffer that is written out in one call when it fills up, on HALT, before
+    // INPUT and when the program ends, instead of going through the
+    // synchronized, autoflushing System.out for every character.
+    static final class Output
+    {
+        private static final int BUFFER_SIZE = 1 << 16;
+        private static final String LINE_SEPARATOR = System.lineSeparator();
+
+        private final OutputStream out;
+        private final Charset charset;
+        // ASCII maps to the same single bytes in the charset, so it skips the encoder
+        private final boolean asciiCompatible;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int count;
+        // A high surrogate waiting for its pair, as PrintStream's encoder would hold it
+        private char pendingHighSurrogate;
+        boolean autoFlush;
+
+        Output(OutputStream out, boolean autoFlush)
+        {
+            this.out = out;
+            this.autoFlush = autoFlush;
+            this.charset = stdoutCharset();
+            this.asciiCompatible = isAsciiCompatible(charset);
+        }
+
+        private static boolean isAsciiCompatible(Charset charset)
+        {
+            char[] ascii = new char[0x80];
+            for (char c = 0; c < ascii.length; c++)
+            {
+                ascii[c] = c;
+            }
+            byte[] encoded = new String(ascii).getBytes(charset);
+            if (encoded.length != ascii.length)
+            {
+                return false;
+            }
+            for (int i = 0; i < encoded.length; i++)
+            {
+                if (encoded[i] != i)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static Charset stdoutCharset()
+        {
+            for (String property : new String[] { "stdout.encoding", "sun.stdout.encoding" })
+            {
+                String name = System.getProperty(property);
+                if (name != null && Charset.isSupported(name))
+                {
+                    return Charset.forName(name);
+                }
+            }
+            return Charset.defaultCharset();
+        }
+
+        void print(char c)
+        {
+            write(c);
+            if (autoFlush)
+            {
+                flush();
+            }
+        }
+
+        void print(String s)
+        {
+            for (int i = 0; i < s.length(); i++)
+            {
+                write(s.charAt(i));
+            }
+            if (autoFlush)
+            {
+                flush();
+            }
+        }
+
+        void print(char[] chars, int offset, int length)
+        {
+            int end = offset + length;
+            int i = offset;
+            while (i < end)
+            {
+                // Runs of ASCII are copied straight into the buffer
+                if (pendingHighSurrogate == 0 && asciiCompatible)
+                {
+                    if (count == BUFFER_SIZE)
+                    {
+                        drain();
+                    }
+                    int stop = Math.min(end, i + BUFFER_SIZE - count);
+                    while (i < stop && chars[i] < 0x80)
+                    {
+                        buffer[count++] = (byte) chars[i++];
+                    }
+                    if (i == stop)
+                    {
+                        continue;
+                    }
+                }
+                write(chars[i++]);
+            }
+            if (autoFlush)
+            {
+                flush();
+            }
+        }
+
+        void println(String s)
+        {
+            print(s + LINE_SEPARATOR);
+        }
+
+        private void write(char c)
+        {
+            if (pendingHighSurrogate == 0 && c < 0x80 && asciiCompatible)
+            {
+                if (count == BUFFER_SIZE)
+                {
+                    drain();
+                }
+                buffer[count++] = (byte) c;
+                return;
+            }
+
+            String text;
+            if (pendingHighSurrogate != 0)
+            {
+                if (Character.isLowSurrogate(c))
+                {
+                    text = new String(new char[] { pendingHighSurrogate, c });
+                    pendingHighSurrogate = 0;
+                }
+                else
+                {
+                    // An unpaired surrogate encodes as the charset's replacement
+                    writeBytes(String.valueOf(pendingHighSurrogate).getBytes(charset));
+                    pendingHighSurrogate = 0;
+                    write(c);
+                    return;
+                }
+            }
+            else if (Character.isHighSurrogate(c))
+            {
+                pendingHighSurrogate = c;
+                return;
+            }
+            else
+            {
+                text = String.valueOf(c);
+            }
+            writeBytes(text.getBytes(charset));
+        }
+
+        private void writeBytes(byte[] bytes)
+        {
+            if (count + bytes.length > BUFFER_SIZE)
+            {
+                drain();
+            }
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+
+        void flush()
+        {
+            drain();
+            try
+            {
+                out.flush();
+            }
+            catch (IOException e)
+            {
+                // Same as PrintStream: output errors never stop the program
+            }
+        }
+
+        private void drain()
+        {
+            if (count > 0)
+            {
+                try
+                {
+                    out.write(buffer, 0, count);
+                }
+                catch (IOException e)
+                {
+                    // Same as PrintStream: output errors never stop the program
+                }
+                count = 0;
+            }
+        }
+    }
+
+    // Numeric reader behind INPUT. One instance lives as long as the
+    // interpreter, so bytes buffered for one INPUT are still there for the
+    // next, and numbers are parsed straight from the byte buffer: plain
+    // integers of up to 18 digits without creating any object, anything
+    // else through BigDecimal. Like Scanner.nextLine(), running out of input
+    // throws NoSuchElementException and a line that is not a number throws
+    // NumberFormatException.
+    static final class Input
+    {
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        private final InputStream in;
+        private byte[] buffer;
+        private int position;
+        private int limit;
+        private char[] text = new char[64];
+        private int length;
+        boolean tokens;
+
+        // Result of the last read(): longValue when it returned true, bigValue otherwise
+        long longValue;
+        BigDecimal bigValue;
+
+        Input(InputStream in)
+        {
+            this.in = in;
+        }
+
+        boolean read()
+        {
+            if (tokens ? !nextToken() : !nextLine())
+            {
+                throw new NoSuchElementException(tokens ? "No number found" : "No line found");
+            }
+            return parse();
+        }
+
+        private boolean nextLine()
+        {
+            length = 0;
+            while (fill())
+            {
+                byte b = buffer[position++];
+                if (b == '\n')
+                {
+                    return true;
+                }
+                if (b == '\r')
+                {
+                    // \r\n is a single separator
+                    if (fill() && buffer[position] == '\n')
+                    {
+                        position++;
+                    }
+                    return true;
+                }
+                append(b);
+            }
+            return length > 0;
+        }
+
+        private boolean nextToken()
+        {
+            length = 0;
+            while (fill())
+            {
+                byte b = buffer[position];
+                if (!isWhitespace(b))
+                {
+                    break;
+                }
+                position++;
+            }
+            while (fill())
+            {
+                byte b = buffer[position];
+                if (isWhitespace(b))
+                {
+                    break;
+                }
+                append(b);
+                position++;
+            }
+            return length > 0;
+        }
+
+        private static boolean isWhitespace(byte b)
+        {
+            return b >= 0 && Character.isWhitespace((char) b);
+        }
+
+        private void append(byte b)
+        {
+            if (length == text.length)
+            {
+                text = Arrays.copyOf(text, length * 2);
+            }
+            text[length++] = (char) (b & 0xFF);
+        }
+
+        // True when at least one unread byte is buffered, reading more if needed
+        private boolean fill()
+        {
+            if (position < limit)
+            {
+                return true;
+            }
+            if (buffer == null)
+            {
+                buffer = new byte[BUFFER_SIZE];
+            }
+            try
+            {
+                int read;
+                do
+                {
+                    read = in.read(buffer, 0, buffer.length);
+                }
+                while (read == 0);
+                position = 0;
+                limit = Math.max(read, 0);
+                return read > 0;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private boolean parse()
+        {
+            int start = length > 0 && (text[0] == '-' || text[0] == '+') ? 1 : 0;
+            if (start < length && length - start <= 18)
+            {
+                long value = 0;
+                int i = start;
+                while (i < length && text[i] >= '0' && text[i] <= '9')
+                {
+                    value = value * 10 + (text[i++] - '0');
+                }
+                if (i == length)
+                {
+                    longValue = text[0] == '-' ? -value : value;
+                    return true;
+                }
+            }
+            bigValue = new BigDecimal(text, 0, length);
+            return false;
+        }
+    }
+
+    // Flat 64K address space indexed by the numeric address. Unset cells read
+    // as zero; a touched bitset remembers which cells were ever written so
+    // DUMP MEMORY lists exactly those, in address order.
+    //
+    // Integer cells that fit in a long live in 'values'; anything else (large,
+    // fractional or non-zero scale) is kept as the original BigDecimal in 'big'.
+    // Storing a BigDecimal that is an exact long demotes it back, so both forms
+    // print identically and callers never see which one is in use.
+    static final class Memory
+    {
+        static final int SIZE = 0x10000;
+
+        private final long[] values = new long[SIZE];
+        private final BigDecimal[] big = new BigDecimal[SIZE];
+        private final long[] touched = new long[SIZE >>> 6];
+        private int touchedCount;
+        // Pages written since the last checkpoint
+        static final int PAGE_SHIFT = 8;
+        static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+        private final boolean[] dirty = new boolean[SIZE >>> PAGE_SHIFT];
+
+        boolean isLong(int address)
+        {
+            return big[address] == null;
+        }
+
+        long getLong(int address)
+        {
+            return values[address];
+        }
+
+        BigDecimal get(int address)
+        {
+            BigDecimal value = big[address];
+            return value == null ? BigDecimal.valueOf(values[address]) : value;
+        }
+
+        void setLong(int address, long value)
+        {
+            values[address] = value;
+            big[address] = null;
+            touch(address);
+        }
+
+        void set(int address, BigDecimal value)
+        {
+            if (fitsLong(value))
+            {
+                setLong(address, value.longValue());
+            }
+            else
+            {
+                big[address] = value;
+                touch(address);
+            }
+        }
+
+        void copy(int dest, int src)
+        {
+            values[dest] = values[src];
+            big[dest] = big[src];
+            touch(dest);
+        }
+
+        // Overlapping ranges are copied as if through a temporary buffer
+        void copyRange(int dest, int src, int count)
+        {
+            System.arraycopy(values, src, values, dest, count);
+            System.arraycopy(big, src, big, dest, count);
+            touchRange(dest, count);
+        }
+
+        void fillLong(int dest, int count, long value)
+        {
+            Arrays.fill(values, dest, dest + count, value);
+            Arrays.fill(big, dest, dest + count, null);
+            touchRange(dest, count);
+        }
+
+        void fill(int dest, int count, BigDecimal value)
+        {
+            if (fitsLong(value))
+            {
+                fillLong(dest, count, value.longValue());
+            }
+            else
+            {
+                Arrays.fill(big, dest, dest + count, value);
+                touchRange(dest, count);
+            }
+        }
+
+        // First address at or after 'from' holding zero, or SIZE
+        int terminator(int from)
+        {
+            for (int address = from; address < SIZE; address++)
+            {
+                BigDecimal value = big[address];
+                if (value == null ? values[address] == 0 : value.signum() == 0)
+                {
+                    return address;
+                }
+            }
+            return SIZE;
+        }
+
+        // Truncated to a char, as PRINT CHAR does
+        void readChars(int from, int count, char[] chars)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                BigDecimal value = big[from + i];
+                chars[i] = (char) (value == null ? (int) values[from + i] : value.intValue());
+            }
+        }
+
+        // Like COMPARE on the first pair of cells that differ, 0 if none do
+        int compareRange(int addr1, int addr2, int count)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                int a = addr1 + i;
+                int b = addr2 + i;
+                int result = big[a] == null && big[b] == null
+                        ? Long.compare(values[a], values[b])
+                        : get(a).compareTo(get(b));
+                if (result != 0)
+                {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        void swap(int addr1, int addr2)
+        {
+            long value = values[addr1];
+            BigDecimal bigValue = big[addr1];
+            values[addr1] = values[addr2];
+            big[addr1] = big[addr2];
+            values[addr2] = value;
+            big[addr2] = bigValue;
+            touch(addr1);
+            touch(addr2);
+        }
+
+        // Only scale-0 values are demoted: 1.0 or 1E+3 must keep printing as written
+        static boolean fitsLong(BigDecimal value)
+        {
+            return value.scale() == 0 && (value.precision() < 19 || value.unscaledValue().bitLength() < 64);
+        }
+
+        private void touch(int address)
+        {
+            dirty[address >>> PAGE_SHIFT] = true;
+            int word = address >>> 6;
+            long bit = 1L << address;
+            if ((touched[word] & bit) == 0)
+            {
+                touched[word] |= bit;
+                touchedCount++;
+            }
+        }
+
+        private void touchRange(int from, int count)
+        {
+            int end = from + count;
+            if (count > 0)
+            {
+                Arrays.fill(dirty, from >>> PAGE_SHIFT, ((end - 1) >>> PAGE_SHIFT) + 1, true);
+            }
+            for (int address = from; address < end; )
+            {
+                int word = address >>> 6;
+                int stop = Math.min(end, (word + 1) << 6);
+                int bits = stop - address;
+                long mask = (bits == 64 ? -1L : (1L << bits) - 1) << address;
+                touchedCount += Long.bitCount(mask & ~touched[word]);
+                touched[word] |= mask;
+                address = stop;
+            }
+        }
+
+        // Next written address at or after 'from', or -1 when there is none
+        int nextTouched(int from)
+        {
+            int word = from >>> 6;
+            if (word >= touched.length)
+            {
+                return -1;
+            }
+            long bits = touched[word] & (-1L << from);
+            while (true)
+            {
+                if (bits != 0)
+                {
+                    return (word << 6) + Long.numberOfTrailingZeros(bits);
+                }
+                if (++word == touched.length)
+                {
+                    return -1;
+                }
+                bits = touched[word];
+            }
+        }
+
+        int touchedCount()
+        {
+            return touchedCount;
+        }
+
+        // Zeroes every written cell; costs the number of written cells, not SIZE
+        void clear()
+        {
+            for (int word = 0; word < touched.length; word++)
+            {
+                long bits = touched[word];
+                while (bits != 0)
+                {
+                    int address = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    values[address] = 0;
+                    big[address] = null;
+                    bits &= bits - 1;
+                }
+                touched[word] = 0;
+            }
+            touchedCount = 0;
+            clearDirty();
+        }
+
+        boolean isDirty(int page)
+        {
+            return dirty[page];
+        }
+
+        void clearDirty()
+        {
+            Arrays.fill(dirty, false);
+        }
+
+        // Every page holding a written cell becomes dirty, so the next checkpoint has all of memory
+        void markTouchedDirty()
+        {
+            for (int page = 0; page < dirty.length; page++)
+            {
+                dirty[page] = hasTouched(page);
+            }
+        }
+
+        boolean hasTouched(int page)
+        {
+            int from = page << PAGE_SHIFT >>> 6;
+            for (int word = from; word < from + (PAGE_SIZE >>> 6); word++)
+            {
+                if (touched[word] != 0)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // A page's touched bits, then the value of each touched cell
+        void writePage(DataOutputStream out, int page) throws IOException
+        {
+            int from = page << PAGE_SHIFT;
+            for (int word = from >>> 6; word < (from + PAGE_SIZE) >>> 6; word++)
+            {
+                out.writeLong(touched[word]);
+            }
+            for (int address = nextTouched(from); address >= 0 && address < from + PAGE_SIZE; address = nextTouched(address + 1))
+            {
+                Checkpoint.writeValue(out, values[address], big[address]);
+            }
+        }
+
+        void readPage(ByteBuffer in, int page) throws IOException
+        {
+            int from = page << PAGE_SHIFT;
+            for (int word = from >>> 6; word < (from + PAGE_SIZE) >>> 6; word++)
+            {
+                long bits = in.getLong();
+                touchedCount += Long.bitCount(bits & ~touched[word]);
+                touched[word] |= bits;
+            }
+            for (int address = nextTouched(from); address >= 0 && address < from + PAGE_SIZE; address = nextTouched(address + 1))
+            {
+                if (in.get() == 0)
+                {
+                    values[address] = Checkpoint.readVarlong(in);
+                    big[address] = null;
+                }
+                else
+                {
+                    values[address] = 0;
+                    big[address] = Checkpoint.readBig(in);
+                }
+            }
+        }
+    }
+
+    // Return addresses of the active CALLs, as source line numbers. Kept
+    // apart from PUSH and POP so data can never be taken for an address.
+    static final class ReturnStack
+    {
+        private int[] lines = new int[64];
+        private int depth;
+        private int limit;
+        // Deepest the stack has been since the last clear()
+        private int highest;
+
+        ReturnStack(int limit)
+        {
+            this.limit = limit;
+        }
+
+        void setLimit(int limit)
+        {
+            this.limit = limit;
+        }
+
+        // False, leaving the stack as it was, when it is already at the limit
+        boolean push(int line)
+        {
+            if (depth >= limit)
+            {
+                return false;
+            }
+            if (depth == lines.length)
+            {
+                lines = Arrays.copyOf(lines, (int) Math.min((long) depth * 2, limit));
+            }
+            lines[depth++] = line;
+            if (depth > highest)
+            {
+                highest = depth;
+            }
+            return true;
+        }
+
+        int pop()
+        {
+            return lines[--depth];
+        }
+
+        boolean isEmpty()
+        {
+            return depth == 0;
+        }
+
+        int depth()
+        {
+            return depth;
+        }
+
+        int highest()
+        {
+            return highest;
+        }
+
+        void clear()
+        {
+            depth = 0;
+            highest = 0;
+        }
+    }
+
+    // Values saved by PUSH, unbounded like memory
+    static final class DataStack
+    {
+        private BigDecimal[] values = new BigDecimal[64];
+        private int size;
+
+        void push(BigDecimal value)
+        {
+            if (size == values.length)
+            {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        BigDecimal pop()
+        {
+            BigDecimal value = values[--size];
+            values[size] = null;
+            return value;
+        }
+
+        boolean isEmpty()
+        {
+            return size == 0;
+        }
+
+        void clear()
+        {
+            Arrays.fill(values, 0, size, null);
+            size = 0;
+        }
+    }
+
+    // A decoded .ton program: source text is parsed once at load time, so the
+    // execution loop only ever sees opcodes, resolved operands and jump targets.
+    // Immutable once loaded, so one Program can be run by any number of
+    // interpreters at the same time.
+    public static final class Program
+    {
+        final Instruction[] code;
+        final Map<String, Integer> labels;
+        // First instruction at or after each source line (return addresses are line numbers)
+        final int[] lineToPc;
+        final ConstantPool constants;
+        // Bound on first use by the threaded engine; handlers hold no VM state
+        private volatile Handler[] handlers;
+        // Generated on first use by the compiled engine, with and without limit
+        // checks; null if the program cannot be compiled
+        private final CompiledProgram[] compiled = new CompiledProgram[2];
+        private final boolean[] compileAttempted = new boolean[2];
+
+        private Program(Instruction[] code, Map<String, Integer> labels, int[] lineToPc, ConstantPool constants)
+        {
+            this.code = code;
+            this.labels = labels;
+            this.lineToPc = lineToPc;
+            this.constants = constants;
+        }
+
+        // Program images are loaded as they are; sources go through the cache unless it is null
+        static Program load(Source source, Path cacheDirectory) throws IOException
+        {
+            if (source.filename.endsWith(ProgramImage.EXTENSION))
+            {
+                return ProgramImage.read(source.bytes(), source.filename, null);
+            }
+            return cacheDirectory == null ? parse(source) : ProgramImage.load(source, cacheDirectory);
+        }
+
+        // Reads a source file or .tonc image, bypassing the cache, and
+        // optimizes it as the command line does by default
+        public static Program fromFile(Path file) throws IOException
+        {
+            LoadEvent event = beginLoadEvent();
+            Program program = Optimizer.optimize(load(Source.read(file.toString()), null), null);
+            commitLoadEvent(event, file.toString(), program, true);
+            return program;
+        }
+
+        // Decodes and optimizes source text held in memory, exactly as a file
+        // with the same contents would be
+        public static Program fromSource(String source)
+        {
+            LoadEvent event = beginLoadEvent();
+            Loader loader = new Loader();
+            loader.read(source);
+            Program program = Optimizer.optimize(loader.finish(), null);
+            commitLoadEvent(event, null, program, true);
+            return program;
+        }
+
+        // One pass over the source bytes: each line is decoded as soon as its
+        // terminator is reached, comments and blank lines are dropped there, and
+        // only the decoded instructions are kept
+        static Program parse(Source source)
+        {
+            Loader loader = new Loader();
+            loader.read(source.bytes());
+            return loader.finish();
+        }
+
+        private static final class Loader
+        {
+            private final Map<String, Integer> labels = new HashMap<>();
+            private final ConstantPool constants = new ConstantPool();
+            private final List<Instruction> code = new ArrayList<>();
+            // Branches, patched once every label is known (the last definition wins)
+            private final List<Instruction> branches = new ArrayList<>();
+            private int[] lineToPc = new int[1024];
+            private int lines;
+
+            // Lines end at \n, \r or \r\n, as for BufferedReader.readLine()
+            void read(ByteBuffer bytes)
+            {
+                CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                CharBuffer chars = CharBuffer.allocate(1 << 14);
+                boolean flushing = false;
+                boolean done = false;
+                while (!done)
+                {
+                    // Either step may stop early when chars fill up; the next pass resumes it
+                    if (!flushing)
+                    {
+                        flushing = decoder.decode(bytes, chars, true).isUnderflow();
+                    }
+                    if (flushing)
+                    {
+                        done = decoder.flush(chars).isUnderflow();
+                    }
+
+                    chars.flip();
+                    char[] text = chars.array();
+                    int limit = chars.limit();
+                    int start = 0;
+                    for (int i = 0; i < limit; i++)
+                    {
+                        char c = text[i];
+                        if (c == '\n' || c == '\r')
+                        {
+                            if (c == '\r' && i + 1 == limit && !done)
+                            {
+                                // Might be half of a \r\n
+                                break;
+                            }
+                            line(text, start, i);
+                            if (c == '\r' && i + 1 < limit && text[i + 1] == '\n')
+                            {
+                                i++;
+                            }
+                            start = i + 1;
+                        }
+                    }
+                    if (done && start < limit)
+                    {
+                        line(text, start, limit);
+                        start = limit;
+                    }
+
+                    // Keep the unfinished line, making room if it fills the buffer
+                    chars.position(start);
+                    chars.compact();
+                    if (!chars.hasRemaining())
+                    {
+                        CharBuffer larger = CharBuffer.allocate(chars.capacity() * 2);
+                        chars.flip();
+                        larger.put(chars);
+                        chars = larger;
+                    }
+                }
+            }
+
+            // The same line splitting for text that is already in memory
+            void read(String source)
+            {
+                char[] text = source.toCharArray();
+                int start = 0;
+                for (int i = 0; i < text.length; i++)
+                {
+                    char c = text[i];
+                    if (c == '\n' || c == '\r')
+                    {
+                        line(text, start, i);
+                        if (c == '\r' && i + 1 < text.length && text[i + 1] == '\n')
+                        {
+                            i++;
+                        }
+                        start = i + 1;
+                    }
+                }
+                if (start < text.length)
+                {
+                    line(text, start, text.length);
+                }
+            }
+
+            private void line(char[] text, int start, int end)
+            {
+                int lineNumber = lines++;
+                if (lineNumber + 1 >= lineToPc.length)
+                {
+                    lineToPc = Arrays.copyOf(lineToPc, lineToPc.length * 2);
+                }
+                lineToPc[lineNumber] = code.size();
+
+                // Trimmed like String.trim()
+                while (start < end && text[start] <= ' ')
+                {
+                    start++;
+                }
+                while (end > start && text[end - 1] <= ' ')
+                {
+                    end--;
+                }
+
+                // Labels are recorded, never executed
+                if (end > start && text[end - 1] == ':')
+                {
+                    labels.put(new String(text, start, end - start - 1).trim(), lineNumber);
+                    return;
+                }
+
+                // Skip empty lines and comments
+                if (end == start || (end - start >= 2 && text[start] == '/' && text[start + 1] == '/'))
+                {
+                    return;
+                }
+
+                // Remove inline comments
+                for (int i = start + 1; i + 1 < end; i++)
+                {
+                    if (text[i] == '/' && text[i + 1] == '/')
+                    {
+                        end = i;
+                        while (text[end - 1] <= ' ')
+                        {
+                            end--;
+                        }
+                        break;
+                    }
+                }
+
+                Instruction instruction = Instruction.decode(new String(text, start, end - start), lineNumber, constants);
+                if (instruction.isBranch())
+                {
+                    branches.add(instruction);
+                }
+                code.add(instruction);
+            }
+
+            Program finish()
+            {
+                lineToPc[lines] = code.size();
+                int[] table = Arrays.copyOf(lineToPc, lines + 1);
+                for (Instruction instruction : branches)
+                {
+                    Integer labelLine = labels.get(instruction.operands[0].text);
+                    instruction.target = labelLine == null ? -1 : table[labelLine];
+                }
+                return new Program(code.toArray(new Instruction[0]), labels, table, constants);
+            }
+        }
+
+        Handler[] handlers()
+        {
+            Handler[] bound = handlers;
+            if (bound == null)
+            {
+                bound = new Handler[code.length];
+                for (int pc = 0; pc < code.length; pc++)
+                {
+                    bound[pc] = bind(code[pc]);
+                }
+                handlers = bound;
+            }
+            return bound;
+        }
+
+        synchronized CompiledProgram compiled(boolean limited)
+        {
+            int variant = limited ? 1 : 0;
+            if (!compileAttempted[variant])
+            {
+                compiled[variant] = JitCompiler.compile(this, limited);
+                compileAttempted[variant] = true;
+            }
+            return compiled[variant];
+        }
+
+        int pcForLine(int line)
+        {
+            if (line < 0)
+            {
+                throw new IllegalArgumentException("Invalid return address: " + line);
+            }
+            return line < lineToPc.length ? lineToPc[line] : code.length;
+        }
+    }
+
+    // Constant propagation over the control flow graph. Works out which
+    // cells hold a known value before each reachable instruction, replaces
+    // reads of them with immediates, and turns arithmetic, bitwise and POWER
+    // instructions on known values into LOAD_IMMEDIATE of the result. Every
+    // cell starts unknown, so nothing is assumed about initial memory.
+    // Results come from running the instruction on a scratch interpreter, so
+    // folding cannot disagree with execution; anything that fails or prints
+    // (an error message) is left to run normally.
+    static final class ConstantFolder
+    {
+        // POWER and shifts are only evaluated at load time for small amounts,
+        // and only results of modest size become constants
+        private static final int MAX_FOLDED_EXPONENT = 64;
+        private static final int MAX_FOLDED_BITS = 4096;
+        // Known cells kept across all block entry states; a block that would
+        // exceed its share forgets everything, which is always safe
+        private static final int KNOWN_CELL_BUDGET = 1 << 20;
+        private static final int MIN_KNOWN_CELLS = 256;
+
+        private final Instruction[] code;
+        private final ConstantPool constants;
+        private final ByteArrayOutputStream scratchOutput = new ByteArrayOutputStream();
+        // Created on the first evaluation
+        private Tonnyi scratch;
+        private final List<Integer> returnPoints = new ArrayList<>();
+        private int maxKnownCells;
+        int foldedOperands;
+        int foldedInstructions;
+
+        ConstantFolder(Instruction[] code, ConstantPool constants)
+        {
+            this.code = code;
+            this.constants = constants;
+        }
+
+        Instruction[] fold()
+        {
+            for (int pc = 0; pc < code.length; pc++)
+            {
+                if (code[pc].opcode == CALL)
+                {
+                    returnPoints.add(pc + 1);
+                }
+            }
+            if (code.length == 0)
+            {
+                return code;
+            }
+
+            // Basic blocks start at the entry, jump targets, return points and after control transfers
+            boolean[] leader = new boolean[code.length + 1];
+            int blocks = 0;
+            leader[0] = true;
+            leader[code.length] = true;
+            for (int pc = 0; pc < code.length; pc++)
+            {
+                int[] next = successors(pc);
+                if (next.length != 1 || next[0] != pc + 1)
+                {
+                    leader[pc + 1] = true;
+                    for (int target : next)
+                    {
+                        leader[target] = true;
+                    }
+                }
+            }
+            for (int pc = 0; pc < code.length; pc++)
+            {
+                blocks += leader[pc] ? 1 : 0;
+            }
+            maxKnownCells = Math.max(MIN_KNOWN_CELLS, KNOWN_CELL_BUDGET / blocks);
+
+            // Known cell values on entry to each block; null until the block is reached
+            List<Map<Integer, BigDecimal>> in = new ArrayList<>(Collections.nCopies(code.length, null));
+            in.set(0, new HashMap<>());
+            Deque<Integer> worklist = new ArrayDeque<>();
+            boolean[] queued = new boolean[code.length];
+            worklist.add(0);
+            queued[0] = true;
+
+            while (!worklist.isEmpty())
+            {
+                int start = worklist.poll();
+                queued[start] = false;
+                Map<Integer, BigDecimal> out = new HashMap<>(in.get(start));
+                int pc = start;
+                while (true)
+                {
+                    transfer(code[pc], out);
+                    if (leader[pc + 1])
+                    {
+                        break;
+                    }
+                    pc++;
+                }
+
+                for (int next : successors(pc))
+                {
+                    if (next >= code.length)
+                    {
+                        continue;
+                    }
+                    Map<Integer, BigDecimal> known = in.get(next);
+                    boolean changed;
+                    if (known == null)
+                    {
+                        in.set(next, new HashMap<>(out));
+                        changed = true;
+                    }
+                    else
+                    {
+                        // Meet: keep only the cells both paths agree on
+                        changed = known.entrySet().removeIf(e -> !e.getValue().equals(out.get(e.getKey())));
+                    }
+                    if (changed && !queued[next])
+                    {
+                        worklist.add(next);
+                        queued[next] = true;
+                    }
+                }
+            }
+
+            // Replay each reached block from its entry state, rewriting as it goes
+            Instruction[] folded = code.clone();
+            for (int start = 0; start < code.length; start++)
+            {
+                if (in.get(start) == null)
+                {
+                    continue;
+                }
+                Map<Integer, BigDecimal> known = in.get(start);
+                for (int pc = start; ; pc++)
+                {
+                    folded[pc] = rewrite(code[pc], known);
+                    transfer(code[pc], known);
+                    if (leader[pc + 1])
+                    {
+                        break;
+                    }
+                }
+            }
+            return folded;
+        }
+
+        private int[] successors(int pc)
+        {
+            Instruction instruction = code[pc];
+            switch (instruction.opcode)
+            {
+                case HALT:
+                case INVALID:
+                    return new int[0];
+                case JUMP:
+                case CALL:
+                    // An unknown label fails when reached; a call continues at a return point via RETURN
+                    return instruction.target >= 0 ? new int[] { instruction.target } : new int[0];
+                case JUMP_IF_ZERO:
+                case JUMP_IF_NOT_ZERO:
+                case JUMP_IF_EQUAL:
+                case JUMP_IF_NOT_EQUAL:
+                case JUMP_IF_GREATER:
+                case JUMP_IF_LESS:
+                    return instruction.target >= 0 ? new int[] { pc + 1, instruction.target } : new int[] { pc + 1 };
+                case RETURN:
+                {
+                    int[] next = new int[returnPoints.size()];
+                    for (int i = 0; i < next.length; i++)
+                    {
+                        next[i] = returnPoints.get(i);
+                    }
+                    return next;
+                }
+                default:
+                    return new int[] { pc + 1 };
+            }
+        }
+
+        private void transfer(Instruction instruction, Map<Integer, BigDecimal> known)
+        {
+            Operand[] operands = instruction.operands;
+            switch (instruction.opcode)
+            {
+                case LOAD_IMMEDIATE:
+                case LOAD_FROM_MEMORY:
+                case MOV:
+                case STORE:
+                    // A write to anything but an address only reports an error
+                    if (instruction.destination().kind == Operand.ADDRESS)
+                    {
+                        assign(known, instruction.destination().address, valueOf(instruction.source(), known));
+                    }
+                    break;
+                case CLEAR:
+                    if (operands[0].kind == Operand.ADDRESS)
+                    {
+                        assign(known, operands[0].address, BigDecimal.ZERO);
+                    }
+                    break;
+                case SWAP:
+                    if (operands[0].kind == Operand.ADDRESS && operands[1].kind == Operand.ADDRESS)
+                    {
+                        BigDecimal first = known.get(operands[0].address);
+                        assign(known, operands[0].address, known.get(operands[1].address));
+                        assign(known, operands[1].address, first);
+                    }
+                    else
+                    {
+                        forget(known, operands);
+                    }
+                    break;
+                case POP:
+                case INPUT:
+                case RANDOM:
+                    forget(known, operands);
+                    break;
+                case MEMORY_COPY:
+                case MEMORY_FILL:
+                    // The range written may only be known at run time
+                    known.clear();
+                    break;
+                default:
+                    if (isFoldable(instruction.opcode) && operands[0].kind == Operand.ADDRESS)
+                    {
+                        assign(known, operands[0].address, evaluate(instruction, known));
+                    }
+                    break;
+            }
+            if (known.size() > maxKnownCells)
+            {
+                known.clear();
+            }
+        }
+
+        private Instruction rewrite(Instruction instruction, Map<Integer, BigDecimal> known)
+        {
+            Operand[] operands = instruction.operands;
+            if (isFoldable(instruction.opcode) && operands[0].kind == Operand.ADDRESS)
+            {
+                BigDecimal result = evaluate(instruction, known);
+                if (result != null)
+                {
+                    foldedInstructions++;
+                    return instruction.rewrite(LOAD_IMMEDIATE, new Operand[] { operands[0], constants.immediate(result) });
+                }
+            }
+
+            Operand[] rewritten = operands.clone();
+            boolean changed = false;
+            for (int i : readOperands(instruction))
+            {
+                BigDecimal value = operands[i].kind == Operand.ADDRESS ? known.get(operands[i].address) : null;
+                if (value != null)
+                {
+                    rewritten[i] = constants.immediate(value);
+                    foldedOperands++;
+                    changed = true;
+                }
+            }
+            return changed ? instruction.rewrite(instruction.opcode, rewritten) : instruction;
+        }
+
+        // Operands that are only read as values, so an immediate behaves the same.
+        // PRINT is left alone: debug mode prints the operand as written.
+        private static int[] readOperands(Instruction instruction)
+        {
+            switch (instruction.opcode)
+            {
+                case LOAD_FROM_MEMORY:
+                case MOV:
+                case ADD:
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE:
+                case MODULO:
+                case POWER:
+                case AND:
+                case OR:
+                case XOR:
+                case SHIFT_LEFT:
+                case SHIFT_RIGHT:
+                    return new int[] { 1 };
+                case STORE:
+                case PRINT_CHAR:
+                case PUSH:
+                    return new int[] { 0 };
+                case COMPARE:
+                    return new int[] { 0, 1 };
+                case MEMORY_FILL:
+                    return new int[] { 1, 2 };
+                case MEMORY_COPY:
+                case MEMORY_COMPARE:
+                    return new int[] { 2 };
+                default:
+                    return new int[0];
+            }
+        }
+
+        private static boolean isFoldable(int opcode)
+        {
+            return opcode >= ADD && opcode <= SHIFT_RIGHT;
+        }
+
+        // The value the instruction leaves in its destination, or null if unknown or not safe to compute
+        private BigDecimal evaluate(Instruction instruction, Map<Integer, BigDecimal> known)
+        {
+            Operand[] operands = instruction.operands;
+            for (Operand operand : operands)
+            {
+                if (valueOf(operand, known) == null)
+                {
+                    return null;
+                }
+            }
+            if (instruction.opcode == POWER || instruction.opcode == SHIFT_LEFT || instruction.opcode == SHIFT_RIGHT)
+            {
+                BigDecimal amount = valueOf(operands[1], known);
+                if (amount.abs().compareTo(BigDecimal.valueOf(MAX_FOLDED_EXPONENT)) > 0)
+                {
+                    return null;
+                }
+            }
+
+            if (scratch == null)
+            {
+                scratch = new Tonnyi(scratchOutput, new ByteArrayInputStream(new byte[0]));
+            }
+            for (Operand operand : operands)
+            {
+                if (operand.kind == Operand.ADDRESS)
+                {
+                    scratch.memory.set(operand.address, known.get(operand.address));
+                }
+            }
+            try
+            {
+                scratch.dispatch(instruction);
+                scratch.output.flush();
+            }
+            catch (Exception e)
+            {
+                scratch.output.flush();
+                scratchOutput.reset();
+                return null;
+            }
+            if (scratchOutput.size() > 0)
+            {
+                scratchOutput.reset();
+                return null;
+            }
+            BigDecimal result = scratch.memory.get(operands[0].address);
+            return result.unscaledValue().bitLength() > MAX_FOLDED_BITS ? null : result;
+        }
+
+        private static BigDecimal valueOf(Operand operand, Map<Integer, BigDecimal> known)
+        {
+            switch (operand.kind)
+            {
+                case Operand.ADDRESS:
+                    return known.get(operand.address);
+                case Operand.IMMEDIATE:
+                    return operand.value;
+                default:
+                    return null;
+            }
+        }
+
+        private static void assign(Map<Integer, BigDecimal> known, int address, BigDecimal value)
+        {
+            if (value == null)
+            {
+                known.remove(address);
+            }
+            else
+            {
+                known.put(address, value);
+            }
+        }
+
+        private static void forget(Map<Integer, BigDecimal> known, Operand[] operands)
+        {
+            for (Operand operand : operands)
+            {
+                if (operand.kind == Operand.ADDRESS)
+                {
+                    known.remove(operand.address);
+                }
+            }
+        }
+    }
+
+    // Load-time optimization of a decoded program. After constant folding,
+    // dead stores and NOPs are dropped (jump targets and return lines are
+    // remapped), then common sequences are fused into superinstructions. A
+    // superinstruction replaces only the first instruction of its sequence;
+    // the rest stay in place for jumps that land between them. Output,
+    // errors and memory are unchanged.
+    static final class Optimizer
+    {
+        // How far ahead a store is checked for being overwritten
+        private static final int DEAD_STORE_WINDOW = 64;
+
+        private Optimizer()
+        {
+        }
+
+        // Optimizes the program, describing each rewrite on report if it is not null
+        static Program optimize(Program program, PrintStream report)
+        {
+            ConstantFolder folder = new ConstantFolder(program.code, program.constants);
+            Instruction[] code = folder.fold();
+            boolean[] removed = new boolean[code.length];
+            int deadStores = markDeadStores(code, removed);
+            int nops = 0;
+            for (int pc = 0; pc < code.length; pc++)
+            {
+                if (code[pc].opcode == NOP && !removed[pc])
+                {
+                    removed[pc] = true;
+                    nops++;
+                }
+            }
+
+            // Compact, sending anything that pointed at a removed instruction to the next survivor
+            int[] newPc = new int[code.length + 1];
+            List<Instruction> kept = new ArrayList<>();
+            for (int pc = 0; pc < code.length; pc++)
+            {
+                newPc[pc] = kept.size();
+                if (!removed[pc])
+                {
+                    kept.add(code[pc]);
+                }
+            }
+            newPc[code.length] = kept.size();
+
+            Instruction[] compact = new Instruction[kept.size()];
+            for (int pc = 0; pc < compact.length; pc++)
+            {
+                Instruction instruction = kept.get(pc);
+                compact[pc] = instruction.target >= 0 ? instruction.retarget(newPc[instruction.target]) : instruction;
+            }
+            int[] lineToPc = new int[program.lineToPc.length];
+            for (int line = 0; line < lineToPc.length; line++)
+            {
+                lineToPc[line] = newPc[program.lineToPc[line]];
+            }
+
+            // Fuse against the unfused neighbours, so sequences can overlap
+            Instruction[] optimized = compact.clone();
+            int fused = 0;
+            for (int pc = 0; pc < compact.length; pc++)
+            {
+                Instruction superinstruction = fuse(compact, pc);
+                if (superinstruction != null)
+                {
+                    optimized[pc] = superinstruction;
+                    fused++;
+                }
+            }
+
+            if (report != null)
+            {
+                report.println("Optimizer: folded " + folder.foldedOperands + " constant operand(s) and "
+                        + folder.foldedInstructions + " constant instruction(s)");
+                report.println("Optimizer: removed " + nops + " NOP(s) and " + deadStores
+                        + " dead store(s), fused " + fused + " sequence(s)");
+                for (Instruction instruction : optimized)
+                {
+                    if (instruction.parts != null)
+                    {
+                        report.println("  line " + (instruction.line + 1) + ": " + describe(instruction.opcode));
+                    }
+                }
+            }
+            return new Program(optimized, program.labels, lineToPc, program.constants);
+        }
+
+        private static Instruction fuse(Instruction[] code, int pc)
+        {
+            Instruction first = code[pc];
+            Instruction second = pc + 1 < code.length ? code[pc + 1] : null;
+            Instruction third = pc + 2 < code.length ? code[pc + 2] : null;
+            if (second == null)
+            {
+                return null;
+            }
+
+            switch (first.opcode)
+            {
+                case COMPARE:
+                    if (isKnownConditionalJump(second))
+                    {
+                        return Instruction.fuse(COMPARE_BRANCH, first, second);
+                    }
+                    break;
+                case INCREMENT:
+                    if (first.operands[0].kind == Operand.ADDRESS && second.opcode == COMPARE
+                            && third != null && isKnownConditionalJump(third))
+                    {
+                        return Instruction.fuse(INCREMENT_COMPARE_BRANCH, first, second, third);
+                    }
+                    break;
+                case LOAD_IMMEDIATE:
+                    if (first.operands[0].kind == Operand.ADDRESS && first.operands[1].isLong
+                            && second.opcode == PRINT_CHAR && second.operands[0].kind == Operand.ADDRESS
+                            && second.operands[0].address == first.operands[0].address)
+                    {
+                        return Instruction.fuse(LOAD_PRINT_CHAR, first, second);
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            if (isSimpleCopy(first) && isSimpleCopy(second))
+            {
+                return Instruction.fuse(MOVE_PAIR, first, second);
+            }
+            return null;
+        }
+
+        private static boolean isKnownConditionalJump(Instruction instruction)
+        {
+            return instruction.opcode >= JUMP_IF_ZERO && instruction.opcode <= JUMP_IF_LESS && instruction.target >= 0;
+        }
+
+        // A copy into an address from an address or immediate; these cannot fail
+        private static boolean isSimpleCopy(Instruction instruction)
+        {
+            switch (instruction.opcode)
+            {
+                case LOAD_IMMEDIATE:
+                case LOAD_FROM_MEMORY:
+                case MOV:
+                case STORE:
+                    return instruction.destination().kind == Operand.ADDRESS
+                            && (instruction.source().kind == Operand.ADDRESS
+                                || instruction.source().kind == Operand.IMMEDIATE);
+                default:
+                    return false;
+            }
+        }
+
+        // A store is dead if the same basic block overwrites its cell before
+        // anything can read it, fail or stop the program
+        private static int markDeadStores(Instruction[] code, boolean[] removed)
+        {
+            boolean[] leader = new boolean[code.length + 1];
+            for (int pc = 0; pc < code.length; pc++)
+            {
+                Instruction instruction = code[pc];
+                if (instruction.target >= 0)
+                {
+                    leader[instruction.target] = true;
+                }
+                if (instruction.opcode == CALL)
+                {
+                    leader[pc + 1] = true;
+                }
+            }
+
+            int count = 0;
+            for (int pc = 0; pc < code.length; pc++)
+            {
+                int cell = storedCell(code[pc]);
+                if (cell < 0)
+                {
+                    continue;
+                }
+                int end = Math.min(code.length, pc + 1 + DEAD_STORE_WINDOW);
+                for (int next = pc + 1; next < end && !leader[next]; next++)
+                {
+                    Instruction instruction = code[next];
+                    if (!isSimple(instruction))
+                    {
+                        break;
+                    }
+                    if (storedCell(instruction) == cell && !reads(instruction, cell))
+                    {
+                        removed[pc] = true;
+                        count++;
+                        break;
+                    }
+                    if (reads(instruction, cell) || storedCell(instruction) == cell)
+                    {
+                        break;
+                    }
+                }
+            }
+            return count;
+        }
+
+        // The one cell an instruction overwrites without reading it first, or -1
+        private static int storedCell(Instruction instruction)
+        {
+            if (instruction.opcode == CLEAR)
+            {
+                Operand address = instruction.operands[0];
+                return address.kind == Operand.ADDRESS ? address.address : -1;
+            }
+            return isSimpleCopy(instruction) ? instruction.destination().address : -1;
+        }
+
+        // Whether any operand other than a store's destination names the cell
+        private static boolean reads(Instruction instruction, int cell)
+        {
+            Operand stored = storedCell(instruction) >= 0 ? instruction.destination() : null;
+            for (Operand operand : instruction.operands)
+            {
+                if (operand != stored && operand.kind == Operand.ADDRESS && operand.address == cell)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Cannot fail or stop the program, and touches only its operand cells
+        private static boolean isSimple(Instruction instruction)
+        {
+            switch (instruction.opcode)
+            {
+                case LOAD_IMMEDIATE:
+                case LOAD_FROM_MEMORY:
+                case MOV:
+                case STORE:
+                case CLEAR:
+                case SWAP:
+                case ADD:
+                case SUBTRACT:
+                case INCREMENT:
+                case DECREMENT:
+                case NEGATE:
+                case ABSOLUTE:
+                case COMPARE:
+                case PRINT:
+                case PRINT_CHAR:
+                    break;
+                default:
+                    return false;
+            }
+            for (Operand operand : instruction.operands)
+            {
+                if (operand.kind != Operand.ADDRESS && operand.kind != Operand.IMMEDIATE)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String describe(int opcode)
+        {
+            switch (opcode)
+            {
+                case COMPARE_BRANCH:
+                    return "compare-and-branch";
+                case INCREMENT_COMPARE_BRANCH:
+                    return "increment-compare-branch";
+                case LOAD_PRINT_CHAR:
+                    return "print-immediate-char";
+                default:
+                    return "move-pair";
+            }
+        }
+    }
+
+    // A program file read once, with the SHA-256 of its bytes (and the charset
+    // they are decoded with). The decoder, the cache key and the image and
+    // checkpoint headers all see these same bytes, even if the file changes.
+    static final class Source
+    {
+        final String filename;
+        final byte[] hash;
+        private final ByteBuffer bytes;
+
+        private Source(String filename, ByteBuffer bytes)
+        {
+            this.filename = filename;
+            this.bytes = bytes;
+            MessageDigest digest;
+            try
+            {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            digest.update(Charset.defaultCharset().name().getBytes(StandardCharsets.UTF_8));
+            digest.update(bytes.duplicate());
+            hash = digest.digest();
+        }
+
+        static Source read(String filename) throws IOException
+        {
+            try (FileInputStream in = new FileInputStream(filename))
+            {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE - 8)
+                {
+                    throw new IOException("File too large: " + filename);
+                }
+                ByteBuffer bytes = ByteBuffer.allocate((int) size);
+                // Reads to the end even if the file has grown since its size was taken
+                while (channel.read(bytes) >= 0)
+                {
+                    if (!bytes.hasRemaining())
+                    {
+                        if (bytes.capacity() == Integer.MAX_VALUE - 8)
+                        {
+                            throw new IOException("File too large: " + filename);
+                        }
+                        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8L, bytes.capacity() * 2L + 4096));
+                        bytes.flip();
+                        larger.put(bytes);
+                        bytes = larger;
+                    }
+                }
+                bytes.flip();
+                return new Source(filename, bytes);
+            }
+        }
+
+        // A fresh view, so the bytes can be decoded any number of times
+        ByteBuffer bytes()
+        {
+            return bytes.duplicate();
+        }
+    }
+
+    // Binary image of a decoded program (.tonc): instructions with resolved
+    // jump targets, operands, constants, labels and the line table, so that
+    // loading it involves no text parsing. Cached images are read through a
+    // memory mapping. The cache stores one image per source, named by the SHA-256
+    // of the source bytes (and the charset they are decoded with), so an
+    // edited source simply misses. Layout: a big-endian header, then every
+    // number is a zigzag varint:
+    //
+    //   "TONC" version:int sourceHash:byte[32]
+    //   strings:    count, then (length, UTF-8 bytes)*
+    //   constants:  count, then (scale, length, unscaled two's complement bytes)*
+    //   operands:   count, then (kind, text, address or constant)*
+    //   code:       count, then (opcode, line, text, name, error, target, operands, operand*)*
+    //               (-1 for a missing string)
+    //   labels:     count, then (name, line)*
+    //   line table: count, then pc*
+    static final class ProgramImage
+    {
+        static final String EXTENSION = ".tonc";
+        private static final int MAGIC = 0x544F4E43;
+        // Bumped whenever decoding changes, so images from older releases are re-parsed
+        private static final int VERSION = 3;
+        private static final int HASH_LENGTH = 32;
+
+        private ProgramImage()
+        {
+        }
+
+        // Loads through the cache directory, decoding and caching the source on a miss
+        static Program load(Source source, Path cacheDirectory) throws IOException
+        {
+            Path cached = cacheDirectory.resolve(hex(source.hash) + EXTENSION);
+            if (Files.isRegularFile(cached))
+            {
+                try
+                {
+                    return read(cached, source.hash);
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    // Stale or damaged: decode the source again and replace it
+                }
+            }
+
+            Program program = Program.parse(source);
+            try
+            {
+                Files.createDirectories(cacheDirectory);
+                write(program, source.hash, cached);
+            }
+            catch (IOException | SecurityException e)
+            {
+                // A read-only cache only costs the next run a parse
+            }
+            return program;
+        }
+
+        static String hex(byte[] bytes)
+        {
+            StringBuilder text = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes)
+            {
+                text.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return text.toString();
+        }
+
+        // Writes atomically, so a concurrent reader sees the old image or the new one
+        static void write(Program program, byte[] hash, Path path) throws IOException
+        {
+            Map<String, Integer> strings = new LinkedHashMap<>();
+            Map<BigDecimal, Integer> constants = new LinkedHashMap<>();
+            Map<Operand, Integer> operands = new IdentityHashMap<>();
+            List<Operand> operandList = new ArrayList<>();
+            for (Instruction instruction : program.code)
+            {
+                intern(strings, instruction.text);
+                intern(strings, instruction.opcodeName);
+                intern(strings, instruction.error == null ? null : instruction.error.getMessage());
+                for (Operand operand : instruction.operands)
+                {
+                    if (!operands.containsKey(operand))
+                    {
+                        operands.put(operand, operandList.size());
+                        operandList.add(operand);
+                        intern(strings, operand.text);
+                        if (operand.value != null && !constants.containsKey(operand.value))
+                        {
+                            constants.put(operand.value, constants.size());
+                        }
+                    }
+                }
+            }
+            for (String label : program.labels.keySet())
+            {
+                intern(strings, label);
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(hash);
+
+            writeVarint(out, strings.size());
+            for (String string : strings.keySet())
+            {
+                byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, utf8.length);
+                out.write(utf8);
+            }
+
+            writeVarint(out, constants.size());
+            for (BigDecimal constant : constants.keySet())
+            {
+                byte[] unscaled = constant.unscaledValue().toByteArray();
+                writeVarint(out, constant.scale());
+                writeVarint(out, unscaled.length);
+                out.write(unscaled);
+            }
+
+            writeVarint(out, operandList.size());
+            for (Operand operand : operandList)
+            {
+                writeVarint(out, operand.kind);
+                writeVarint(out, strings.get(operand.text));
+                writeVarint(out, operand.kind == Operand.ADDRESS ? operand.address
+                        : operand.value != null ? constants.get(operand.value) : -1);
+            }
+
+            writeVarint(out, program.code.length);
+            for (Instruction instruction : program.code)
+            {
+                writeVarint(out, instruction.opcode);
+                writeVarint(out, instruction.line);
+                writeVarint(out, index(strings, instruction.text));
+                writeVarint(out, index(strings, instruction.opcodeName));
+                writeVarint(out, index(strings, instruction.error == null ? null : instruction.error.getMessage()));
+                writeVarint(out, instruction.target);
+                writeVarint(out, instruction.operands.length);
+                for (Operand operand : instruction.operands)
+                {
+                    writeVarint(out, operands.get(operand));
+                }
+            }
+
+            writeVarint(out, program.labels.size());
+            for (Map.Entry<String, Integer> label : program.labels.entrySet())
+            {
+                writeVarint(out, strings.get(label.getKey()));
+                writeVarint(out, label.getValue());
+            }
+
+            writeVarint(out, program.lineToPc.length);
+            for (int pc : program.lineToPc)
+            {
+                writeVarint(out, pc);
+            }
+            out.flush();
+
+            Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), "image", ".tmp");
+            try
+            {
+                Files.write(temporary, bytes.toByteArray());
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        // Zigzag LEB128, so small and small negative values take one byte
+        private static void writeVarint(DataOutputStream out, int value) throws IOException
+        {
+            int bits = (value << 1) ^ (value >> 31);
+            while ((bits & ~0x7F) != 0)
+            {
+                out.writeByte((bits & 0x7F) | 0x80);
+                bits >>>= 7;
+            }
+            out.writeByte(bits);
+        }
+
+        private static int readVarint(ByteBuffer in) throws IOException
+        {
+            int bits = 0;
+            for (int shift = 0; shift < 35; shift += 7)
+            {
+                byte b = in.get();
+                bits |= (b & 0x7F) << shift;
+                if (b >= 0)
+                {
+                    return (bits >>> 1) ^ -(bits & 1);
+                }
+            }
+            throw new IOException("Malformed varint in program image");
+        }
+
+        private static void intern(Map<String, Integer> strings, String string)
+        {
+            if (string != null && !strings.containsKey(string))
+            {
+                strings.put(string, strings.size());
+            }
+        }
+
+        private static int index(Map<String, Integer> strings, String string)
+        {
+            return string == null ? -1 : strings.get(string);
+        }
+
+        // Reads an image; with a hash, only if it was made from that source
+        static Program read(Path path, byte[] hash) throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), path.toString(), hash);
+            }
+        }
+
+        // 'file' is only for messages
+        static Program read(ByteBuffer in, String file, byte[] hash) throws IOException
+        {
+            try
+            {
+                if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                {
+                    throw new IOException("Not a program image: " + file);
+                }
+                byte[] sourceHash = new byte[HASH_LENGTH];
+                in.get(sourceHash);
+                if (hash != null && !Arrays.equals(hash, sourceHash))
+                {
+                    throw new IOException("Program image is out of date: " + file);
+                }
+
+                String[] strings = new String[readVarint(in)];
+                for (int i = 0; i < strings.length; i++)
+                {
+                    byte[] utf8 = new byte[readVarint(in)];
+                    in.get(utf8);
+                    strings[i] = new String(utf8, StandardCharsets.UTF_8);
+                }
+
+                ConstantPool pool = new ConstantPool();
+                BigDecimal[] constants = new BigDecimal[readVarint(in)];
+                for (int i = 0; i < constants.length; i++)
+                {
+                    int scale = readVarint(in);
+                    byte[] unscaled = new byte[readVarint(in)];
+                    in.get(unscaled);
+                    constants[i] = pool.intern(new BigDecimal(new BigInteger(unscaled), scale));
+                }
+
+                Operand[] operands = new Operand[readVarint(in)];
+                for (int i = 0; i < operands.length; i++)
+                {
+                    int kind = readVarint(in);
+                    String text = strings[readVarint(in)];
+                    int value = readVarint(in);
+                    operands[i] = kind == Operand.ADDRESS ? new Operand(kind, text, value, null)
+                            : new Operand(kind, text, -1, value >= 0 ? constants[value] : null);
+                    if (kind == Operand.IMMEDIATE || kind == Operand.BAD_NUMBER)
+                    {
+                        pool.operands.put(text, operands[i]);
+                    }
+                }
+
+                Instruction[] code = new Instruction[readVarint(in)];
+                for (int pc = 0; pc < code.length; pc++)
+                {
+                    int opcode = readVarint(in);
+                    int line = readVarint(in);
+                    String text = string(strings, readVarint(in));
+                    String opcodeName = string(strings, readVarint(in));
+                    String error = string(strings, readVarint(in));
+                    int target = readVarint(in);
+                    Operand[] instructionOperands = new Operand[readVarint(in)];
+                    for (int i = 0; i < instructionOperands.length; i++)
+                    {
+                        instructionOperands[i] = operands[readVarint(in)];
+                    }
+                    code[pc] = new Instruction(opcode, instructionOperands, line, text, opcodeName,
+                            opcode == INVALID ? new NumberFormatException(error) : null);
+                    code[pc].target = target;
+                }
+
+                Map<String, Integer> labels = new HashMap<>();
+                int labelCount = readVarint(in);
+                for (int i = 0; i < labelCount; i++)
+                {
+                    String name = strings[readVarint(in)];
+                    labels.put(name, readVarint(in));
+                }
+
+                int[] lineToPc = new int[readVarint(in)];
+                for (int line = 0; line < lineToPc.length; line++)
+                {
+                    lineToPc[line] = readVarint(in);
+                }
+                return new Program(code, labels, lineToPc, pool);
+            }
+            catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e)
+            {
+                throw new IOException("Damaged program image: " + file, e);
+            }
+        }
+
+        private static String string(String[] strings, int index)
+        {
+            return index < 0 ? null : strings[index];
+        }
+    }
+
+    static final class Instruction
+    {
+        private static final Operand[] NO_OPERANDS = new Operand[0];
+
+        final int opcode;
+        final Operand[] operands;
+        final int line;
+        // Source text after comment removal, kept for error messages only
+        final String text;
+        // Normalized opcode for UNKNOWN, decode failure for INVALID
+        final String opcodeName;
+        final RuntimeException error;
+        // Resolved jump target for JUMP .. CALL, -1 for an unknown label
+        int target = -1;
+        // The instructions a superinstruction stands for, null otherwise
+        final Instruction[] parts;
+
+        private Instruction(int opcode, Operand[] operands, int line, String text, String opcodeName, RuntimeException error)
+        {
+            this(opcode, operands, line, text, opcodeName, error, null);
+        }
+
+        private Instruction(int opcode, Operand[] operands, int line, String text, String opcodeName,
+                            RuntimeException error, Instruction[] parts)
+        {
+            this.opcode = opcode;
+            this.operands = operands;
+            this.line = line;
+            this.text = text;
+            this.opcodeName = opcodeName;
+            this.error = error;
+            this.parts = parts;
+        }
+
+        // Takes the first part's operands and text (errors are reported against it) and the last part's target
+        static Instruction fuse(int opcode, Instruction... parts)
+        {
+            Instruction first = parts[0];
+            Instruction fused = new Instruction(opcode, first.operands, first.line, first.text, first.opcodeName, null, parts);
+            fused.target = parts[parts.length - 1].target;
+            return fused;
+        }
+
+        // Same source line and target with a different operation, for constant folding
+        Instruction rewrite(int opcode, Operand[] operands)
+        {
+            Instruction copy = new Instruction(opcode, operands, line, text, opcodeName, error, parts);
+            copy.target = target;
+            return copy;
+        }
+
+        Instruction retarget(int target)
+        {
+            Instruction copy = new Instruction(opcode, operands, line, text, opcodeName, error, parts);
+            copy.target = target;
+            return copy;
+        }
+
+        // The instruction that runs first: itself, or a superinstruction's first part
+        Instruction head()
+        {
+            return parts == null ? this : parts[0];
+        }
+
+        // LOAD_IMMEDIATE, LOAD_FROM_MEMORY, MOV and STORE only
+        Operand destination()
+        {
+            return opcode == STORE ? operands[1] : operands[0];
+        }
+
+        Operand source()
+        {
+            return opcode == STORE ? operands[0] : operands[1];
+        }
+
+        // Equivalent to splitting on \\s+ and [,\\s]+, without regular expressions
+        static Instruction decode(String text, int line, ConstantPool constants)
+        {
+            int length = text.length();
+            int opcodeEnd = 0;
+            while (opcodeEnd < length && !isSpace(text.charAt(opcodeEnd)))
+            {
+                opcodeEnd++;
+            }
+            String rawOpcode = opcodeEnd == length ? text : text.substring(0, opcodeEnd);
+            int operandStart = opcodeEnd;
+            while (operandStart < length && isSpace(text.charAt(operandStart)))
+            {
+                operandStart++;
+            }
+
+            // One-liner normalization for binary opcodes
+            String opcodeName = rawOpcode;
+            int opcode = UNKNOWN;
+            if (rawOpcode.startsWith("0b"))
+            {
+                // Leading zeros collapse to one, as the error message shows
+                int digits = 2;
+                while (digits < rawOpcode.length() && rawOpcode.charAt(digits) == '0')
+                {
+                    digits++;
+                }
+                int value;
+                try
+                {
+                    value = Integer.parseInt(digits > 2 ? "0" + rawOpcode.substring(digits) : rawOpcode.substring(2), 2);
+                }
+                catch (NumberFormatException e)
+                {
+                    return new Instruction(INVALID, NO_OPERANDS, line, text, rawOpcode, e);
+                }
+                if (value >= 0 && value < OPCODE_NAMES.length)
+                {
+                    opcodeName = OPCODE_NAMES[value];
+                    opcode = value < OPERAND_COUNT.length ? value : UNKNOWN;
+                }
+                else
+                {
+                    opcodeName = "0b" + Integer.toBinaryString(value);
+                }
+            }
+            if (opcode == UNKNOWN)
+            {
+                return new Instruction(UNKNOWN, NO_OPERANDS, line, text, opcodeName, null);
+            }
+
+            // Missing operands made the instruction a silent no-op
+            int count = OPERAND_COUNT[opcode];
+            String[] operands = new String[count];
+            if (split(text, operandStart, operands) < count)
+            {
+                return new Instruction(NOP, NO_OPERANDS, line, text, opcodeName, null);
+            }
+
+            Operand[] decoded = new Operand[count];
+            boolean branch = opcode >= JUMP && opcode <= CALL;
+            for (int i = 0; i < count; i++)
+            {
+                decoded[i] = branch ? constants.label(operands[i]) : Operand.parse(operands[i], constants);
+            }
+            return new Instruction(opcode, decoded, line, text, opcodeName, null);
+        }
+
+        // Fills operands with the first fields separated by commas and
+        // whitespace and returns how many fields there are in total. As with
+        // String.split, a leading separator gives an empty first field and
+        // trailing ones give none.
+        private static int split(String text, int start, String[] operands)
+        {
+            int end = text.length();
+            while (end > start && isSeparator(text.charAt(end - 1)))
+            {
+                end--;
+            }
+            int fields = 0;
+            int i = start;
+            while (i < end)
+            {
+                int fieldStart = i;
+                while (i < end && !isSeparator(text.charAt(i)))
+                {
+                    i++;
+                }
+                if (fields < operands.length)
+                {
+                    operands[fields] = text.substring(fieldStart, i);
+                }
+                fields++;
+                while (i < end && isSeparator(text.charAt(i)))
+                {
+                    i++;
+                }
+            }
+            return fields;
+        }
+
+        // \\s
+        private static boolean isSpace(char c)
+        {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+        }
+
+        private static boolean isSeparator(char c)
+        {
+            return c == ',' || isSpace(c);
+        }
+
+        boolean isBranch()
+        {
+            return opcode >= JUMP && opcode <= CALL;
+        }
+
+        // JUMP, the conditional jumps and superinstructions that end in one
+        boolean isJump()
+        {
+            return (opcode >= JUMP && opcode <= JUMP_IF_LESS)
+                    || opcode == COMPARE_BRANCH || opcode == INCREMENT_COMPARE_BRANCH;
+        }
+    }
+
+    // The operands of one program. Each distinct literal is parsed once
+    // and its Operand shared by every instruction that writes it, and equal
+    // values share one BigDecimal; integers 0-255 use instances shared by
+    // all programs.
+    static final class ConstantPool
+    {
+        private static final BigDecimal[] SMALL = new BigDecimal[256];
+
+        static
+        {
+            for (int i = 0; i < SMALL.length; i++)
+            {
+                SMALL[i] = BigDecimal.valueOf(i);
+            }
+        }
+
+        // Immediates and addresses, which never share text
+        private final Map<String, Operand> operands = new HashMap<>();
+        // Kept apart because a label may be spelled like an address
+        private final Map<String, Operand> labels = new HashMap<>();
+        private final Map<BigDecimal, BigDecimal> values = new HashMap<>();
+
+        // An immediate operand as written, "#" included
+        Operand immediate(String text)
+        {
+            Operand operand = operands.get(text);
+            if (operand == null)
+            {
+                try
+                {
+                    operand = new Operand(Operand.IMMEDIATE, text, -1, intern(new BigDecimal(text.substring(1))));
+                }
+                catch (NumberFormatException e)
+                {
+                    operand = new Operand(Operand.BAD_NUMBER, text, -1, null);
+                }
+                operands.put(text, operand);
+            }
+            return operand;
+        }
+
+        // Addresses and labels are shared by text too; a bad address keeps its text for the error
+        Operand address(String text)
+        {
+            Operand operand = operands.get(text);
+            if (operand == null)
+            {
+                operand = isValidAddress(text)
+                        ? new Operand(Operand.ADDRESS, text, Integer.parseInt(text.substring(2), 16), null)
+                        : new Operand(Operand.BAD_ADDRESS, text, -1, null);
+                operands.put(text, operand);
+            }
+            return operand;
+        }
+
+        Operand label(String text)
+        {
+            Operand operand = labels.get(text);
+            if (operand == null)
+            {
+                operand = new Operand(Operand.LABEL, text, -1, null);
+                labels.put(text, operand);
+            }
+            return operand;
+        }
+
+        // An immediate for a value computed at load time
+        Operand immediate(BigDecimal value)
+        {
+            String text = "#" + value;
+            Operand operand = operands.get(text);
+            if (operand == null)
+            {
+                operand = new Operand(Operand.IMMEDIATE, text, -1, intern(value));
+                operands.put(text, operand);
+            }
+            return operand;
+        }
+
+        BigDecimal intern(BigDecimal value)
+        {
+            // Equality includes scale, so 1 and 1.0 stay distinct
+            if (value.scale() == 0 && value.signum() >= 0 && value.compareTo(BigDecimal.valueOf(SMALL.length)) < 0)
+            {
+                value = SMALL[value.intValue()];
+            }
+            BigDecimal shared = values.putIfAbsent(value, value);
+            return shared == null ? value : shared;
+        }
+
+        // Distinct constant values in the program
+        int size()
+        {
+            return values.size();
+        }
+    }
+
+    static final class Operand
+    {
+        static final int ADDRESS = 0;
+        static final int IMMEDIATE = 1;
+        static final int LABEL = 2;
+        static final int BAD_NUMBER = 3;
+        static final int BAD_ADDRESS = 4;
+
+        final int kind;
+        final String text;
+        final int address;
+        final BigDecimal value;
+        // Immediates that are exact longs also carry the primitive form
+        final boolean isLong;
+        final long longValue;
+
+        private Operand(int kind, String text, int address, BigDecimal value)
+        {
+            this.kind = kind;
+            this.text = text;
+            this.address = address;
+            this.value = value;
+            this.isLong = value != null && Memory.fitsLong(value);
+            this.longValue = isLong ? value.longValue() : 0;
+        }
+
+        static Operand parse(String text, ConstantPool constants)
+        {
+            if (text.startsWith("#"))
+            {
+                return constants.immediate(text);
+            }
+            return constants.address(text);
+        }
+    }
+
+    // Ring buffer behind --trace: for each of the last 'capacity' executed
+    // instructions, its pc and the values of up to three address operands
+    // before it ran and of the first one after. Everything lives in
+    // preallocated arrays, so recording costs a few stores per instruction
+    // and allocates nothing (values that do not fit a long are kept by
+    // reference to their immutable BigDecimal). Where each instruction went
+    // on to is the pc of the entry after it.
+    static final class Trace
+    {
+        private static final int VALUES = 4;
+        // Interpreters running with a trace, for MetricsMXBean.dumpTraces()
+        static final Set<Tonnyi> TRACING = ConcurrentHashMap.newKeySet();
+
+        final int capacity;
+        private final int[] pcs;
+        private final long[] values;
+        private final BigDecimal[] bigValues;
+        private Program program;
+        private long recorded;
+        // Slot of the latest entry, and whether that instruction has finished
+        private int slot;
+        private boolean finished;
+
+        Trace(int capacity)
+        {
+            this.capacity = capacity;
+            pcs = new int[capacity];
+            values = new long[capacity * VALUES];
+            bigValues = new BigDecimal[capacity * VALUES];
+        }
+
+        void clear(Program program)
+        {
+            this.program = program;
+            recorded = 0;
+            slot = -1;
+            finished = false;
+            Arrays.fill(bigValues, null);
+        }
+
+        void before(int pc, Instruction instruction, Memory memory)
+        {
+            int slot = this.slot + 1;
+            if (slot == capacity)
+            {
+                slot = 0;
+            }
+            this.slot = slot;
+            recorded++;
+            finished = false;
+            pcs[slot] = pc;
+            Operand[] operands = instruction.operands;
+            int base = slot * VALUES;
+            for (int i = 0; i < operands.length && i < VALUES - 1; i++)
+            {
+                if (operands[i].kind == Operand.ADDRESS)
+                {
+                    record(base + i, operands[i].address, memory);
+                }
+            }
+        }
+
+        void after(Instruction instruction, Memory memory)
+        {
+            finished = true;
+            Operand[] operands = instruction.operands;
+            if (operands.length > 0 && operands[0].kind == Operand.ADDRESS)
+            {
+                record(slot * VALUES + VALUES - 1, operands[0].address, memory);
+            }
+        }
+
+        private void record(int index, int address, Memory memory)
+        {
+            if (memory.isLong(address))
+            {
+                values[index] = memory.getLong(address);
+                bigValues[index] = null;
+            }
+            else
+            {
+                bigValues[index] = memory.get(address);
+            }
+        }
+
+        // Oldest first, ending with 'nextPc' once the latest instruction has
+        // finished; may be torn if the program is still running (dumpTraces)
+        synchronized void dump(PrintStream out, String reason, int nextPc)
+        {
+            long total = recorded;
+            int latest = slot;
+            boolean done = finished;
+            long first = Math.max(0, total - capacity);
+            out.println("Trace of the last " + (total - first) + " of " + total + " instruction(s), oldest first ("
+                    + reason + "):");
+            for (long entry = first; entry < total; entry++)
+            {
+                int slot = (int) ((latest - (total - 1 - entry) + capacity) % capacity);
+                int pc = pcs[slot];
+                Instruction instruction = program.code[pc];
+                StringBuilder line = new StringBuilder(String.format("  %6d %6d  %-32s", pc, instruction.line + 1,
+                        instruction.text));
+                Operand[] operands = instruction.operands;
+                int base = slot * VALUES;
+                for (int i = 0; i < operands.length && i < VALUES - 1; i++)
+                {
+                    if (operands[i].kind == Operand.ADDRESS)
+                    {
+                        line.append(' ').append(operands[i].text).append('=').append(value(base + i));
+                    }
+                }
+                boolean last = entry == total - 1;
+                if (last && !done)
+                {
+                    line.append("  <- did not finish");
+                }
+                else
+                {
+                    if (operands.length > 0 && operands[0].kind == Operand.ADDRESS)
+                    {
+                        line.append(" -> ").append(value(base + VALUES - 1));
+                    }
+                    int next = last ? nextPc : pcs[(slot + 1) % capacity];
+                    if (next != pc + 1)
+                    {
+                        line.append(" -> pc ").append(next);
+                    }
+                }
+                while (line.charAt(line.length() - 1) == ' ')
+                {
+                    line.setLength(line.length() - 1);
+                }
+                out.println(line);
+            }
+            out.flush();
+        }
+
+        private String value(int index)
+        {
+            BigDecimal big = bigValues[index];
+            return big != null ? big.toString() : Long.toString(values[index]);
+        }
+    }
+
+    // Checkpoints of a running program, so a long run that is stopped or
+    // dies can carry on later from where it was. The file is a log: a
+    // header naming the program, then one record per checkpoint with the
+    // registers, both stacks and only the memory pages written since the
+    // record before, so a checkpoint costs what the program touched rather
+    // than all of memory. Resuming replays the records in order. Every record
+    // ends in a CRC32 and is forced to disk before the program goes on, so a
+    // crash while writing loses that record only. Once the log is
+    // COMPACT_RATIO times the size of a full checkpoint it is rewritten as
+    // a single record beside the old one and renamed over it.
+    //
+    //   "TONS" version:int sourceHash:byte[32] instructions optimized:byte
+    //   record:  length:int body:byte[length] crc32:int
+    //   body:    pc comparison debug:byte executed:varlong
+    //            depth line* size value* pages (page touched:long[4] cell*)*
+    //   value:   0 zigzag:varlong | 1 scale length unscaled:byte[]
+    //
+    // (numbers are zigzag varints unless a width is given; cells are values
+    // of the page's touched cells in address order)
+    static final class Checkpoint
+    {
+        private static final int MAGIC = 0x544F4E53;
+        private static final int VERSION = 1;
+        private static final int COMPACT_RATIO = 4;
+        private static final int PAGES = Memory.SIZE >>> Memory.PAGE_SHIFT;
+        // Interpreters writing checkpoints, for MetricsMXBean.requestCheckpoints()
+        static final Set<Tonnyi> CHECKPOINTING = ConcurrentHashMap.newKeySet();
+
+        private final Path path;
+        private final byte[] header;
+        private FileChannel channel;
+        // Instructions executed before this run resumed
+        private long base;
+        // Size of the log up to its last full checkpoint (the first record); 0 until one is written
+        private long fullLength;
+
+        private Checkpoint(Path path, byte[] header)
+        {
+            this.path = path;
+            this.header = header;
+        }
+
+        // Checkpoints of 'program', decoded from the source with this hash
+        static Checkpoint of(Path path, byte[] hash, Program program, boolean optimized) throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(hash);
+            ProgramImage.writeVarint(out, program.code.length);
+            out.writeBoolean(optimized);
+            return new Checkpoint(path, bytes.toByteArray());
+        }
+
+        // Restores the state of the last complete record into 'vm' when
+        // resuming from an existing log, which then grows from there;
+        // otherwise starts an empty one. False if there was nothing to resume.
+        boolean start(Tonnyi vm, boolean resume) throws IOException
+        {
+            fullLength = 0;
+            long valid = resume && Files.exists(path) ? replay(vm) : 0;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (valid == 0)
+            {
+                channel.truncate(0);
+                writeFully(ByteBuffer.wrap(header));
+                channel.force(false);
+                vm.memory.markTouchedDirty();
+                base = 0;
+                return false;
+            }
+            // Drops a record torn by a crash
+            channel.truncate(valid);
+            channel.position(valid);
+            vm.memory.clearDirty();
+            return true;
+        }
+
+        // End of the last complete record, or 0 if there is none
+        private long replay(Tonnyi vm) throws IOException
+        {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (in.remaining() < 8 || in.getInt(0) != MAGIC || in.getInt(4) != VERSION)
+            {
+                throw new IOException(path + " is not a checkpoint");
+            }
+            byte[] head = new byte[Math.min(header.length, in.remaining())];
+            in.get(head);
+            if (!Arrays.equals(head, header))
+            {
+                throw new IOException(path + " was written for another program or optimization setting");
+            }
+
+            long valid = 0;
+            CRC32 crc = new CRC32();
+            while (in.remaining() >= 4)
+            {
+                int length = in.getInt();
+                if (length < 0 || in.remaining() - 4 < length)
+                {
+                    break;
+                }
+                int body = in.position();
+                crc.reset();
+                crc.update(in.array(), body, length);
+                in.position(body + length);
+                if (in.getInt() != (int) crc.getValue())
+                {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(in.array(), body, length);
+                try
+                {
+                    restore(vm, record);
+                }
+                catch (BufferUnderflowException | IndexOutOfBoundsException e)
+                {
+                    throw new IOException("Malformed record in checkpoint " + path);
+                }
+                valid = in.position();
+                if (fullLength == 0)
+                {
+                    // The first record always holds every written page
+                    fullLength = valid;
+                }
+            }
+            return valid;
+        }
+
+        private void restore(Tonnyi vm, ByteBuffer in) throws IOException
+        {
+            vm.programCounter = ProgramImage.readVarint(in);
+            vm.comparisonResult = ProgramImage.readVarint(in);
+            vm.debugMode = in.get() != 0;
+            base = readVarlong(in);
+
+            vm.returnStack.clear();
+            for (int i = ProgramImage.readVarint(in); i > 0; i--)
+            {
+                if (!vm.returnStack.push(ProgramImage.readVarint(in)))
+                {
+                    throw new IOException("Checkpoint has more nested calls than the call depth limit");
+                }
+            }
+            vm.dataStack.clear();
+            for (int i = ProgramImage.readVarint(in); i > 0; i--)
+            {
+                vm.dataStack.push(in.get() == 0 ? BigDecimal.valueOf(readVarlong(in)) : readBig(in));
+            }
+            for (int i = ProgramImage.readVarint(in); i > 0; i--)
+            {
+                int page = ProgramImage.readVarint(in);
+                if (page < 0 || page >= PAGES)
+                {
+                    throw new IOException("Malformed record in checkpoint " + path);
+                }
+                vm.memory.readPage(in, page);
+            }
+        }
+
+        // Appends the current state, or rewrites the log as one full
+        // checkpoint once it has grown too long to replay cheaply
+        void write(Tonnyi vm) throws IOException
+        {
+            if (fullLength > 0 && channel.size() >= COMPACT_RATIO * fullLength)
+            {
+                compact(vm);
+            }
+            else
+            {
+                long size = channel.size();
+                try
+                {
+                    writeFully(record(vm, false));
+                    channel.force(false);
+                }
+                catch (IOException e)
+                {
+                    // Keep the log readable up to the previous checkpoint
+                    channel.truncate(size);
+                    throw e;
+                }
+                if (fullLength == 0)
+                {
+                    fullLength = channel.size();
+                }
+            }
+            vm.memory.clearDirty();
+        }
+
+        private void compact(Tonnyi vm) throws IOException
+        {
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+            {
+                ByteBuffer[] buffers = { ByteBuffer.wrap(header), record(vm, true) };
+                while (buffers[1].hasRemaining())
+                {
+                    out.write(buffers);
+                }
+                out.force(false);
+            }
+            channel.close();
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            fullLength = channel.size();
+            channel.position(fullLength);
+        }
+
+        // A framed record of the dirty pages, or of every written page when 'full'
+        private ByteBuffer record(Tonnyi vm, boolean full) throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            ProgramImage.writeVarint(out, vm.programCounter);
+            ProgramImage.writeVarint(out, vm.comparisonResult);
+            out.writeBoolean(vm.debugMode);
+            writeVarlong(out, base + vm.executed);
+
+            ReturnStack returnStack = vm.returnStack;
+            ProgramImage.writeVarint(out, returnStack.depth);
+            for (int i = 0; i < returnStack.depth; i++)
+            {
+                ProgramImage.writeVarint(out, returnStack.lines[i]);
+            }
+            DataStack dataStack = vm.dataStack;
+            ProgramImage.writeVarint(out, dataStack.size);
+            for (int i = 0; i < dataStack.size; i++)
+            {
+                BigDecimal value = dataStack.values[i];
+                if (Memory.fitsLong(value))
+                {
+                    writeValue(out, value.longValue(), null);
+                }
+                else
+                {
+                    writeValue(out, 0, value);
+                }
+            }
+
+            Memory memory = vm.memory;
+            int pages = 0;
+            for (int page = 0; page < PAGES; page++)
+            {
+                if (full ? memory.hasTouched(page) : memory.isDirty(page))
+                {
+                    pages++;
+                }
+            }
+            ProgramImage.writeVarint(out, pages);
+            for (int page = 0; page < PAGES; page++)
+            {
+                if (full ? memory.hasTouched(page) : memory.isDirty(page))
+                {
+                    ProgramImage.writeVarint(out, page);
+                    memory.writePage(out, page);
+                }
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray(), 4, bytes.size() - 4);
+            out.writeInt((int) crc.getValue());
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            record.putInt(0, bytes.size() - 8);
+            return record;
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException
+        {
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+        }
+
+        // Instructions executed in earlier runs of the program, up to the resumed checkpoint
+        long resumedAfter()
+        {
+            return base;
+        }
+
+        // The log is only kept while the program has not finished
+        void close(boolean finished) throws IOException
+        {
+            channel.close();
+            if (finished)
+            {
+                Files.deleteIfExists(path);
+            }
+        }
+
+        static void writeValue(DataOutputStream out, long value, BigDecimal big) throws IOException
+        {
+            if (big == null)
+            {
+                out.writeByte(0);
+                writeVarlong(out, value);
+            }
+            else
+            {
+                byte[] unscaled = big.unscaledValue().toByteArray();
+                out.writeByte(1);
+                ProgramImage.writeVarint(out, big.scale());
+                ProgramImage.writeVarint(out, unscaled.length);
+                out.write(unscaled);
+            }
+        }
+
+        static BigDecimal readBig(ByteBuffer in) throws IOException
+        {
+            int scale = ProgramImage.readVarint(in);
+            byte[] unscaled = new byte[ProgramImage.readVarint(in)];
+            in.get(unscaled);
+            return new BigDecimal(new BigInteger(unscaled), scale);
+        }
+
+        private static void writeVarlong(DataOutputStream out, long value) throws IOException
+        {
+            long bits = (value << 1) ^ (value >> 63);
+            while ((bits & ~0x7FL) != 0)
+            {
+                out.writeByte((int) (bits & 0x7F) | 0x80);
+                bits >>>= 7;
+            }
+            out.writeByte((int) bits);
+        }
+
+        static long readVarlong(ByteBuffer in) throws IOException
+        {
+            long bits = 0;
+            for (int shift = 0; shift < 70; shift += 7)
+            {
+                byte b = in.get();
+                bits |= (long) (b & 0x7F) << shift;
+                if (b >= 0)
+                {
+                    return (bits >>> 1) ^ -(bits & 1);
+                }
+            }
+            throw new IOException("Malformed varint in checkpoint");
+        }
+    }
+
+    // Memory kept in a file between runs. The fixed-width part is mapped;
+    // cells are copied in from the mapping in bulk before the program runs
+    // (the engines index plain arrays, and a bulk copy of 512K is far
+    // cheaper than decoding the LOAD IMMEDIATEs that would set up the same
+    // data) and written back through it afterwards, only where they changed.
+    // Values that do not fit a long go to an overflow area after the cells,
+    // rewritten on every save. Little-endian, so a dataset can be written by
+    // any tool that writes 64-bit integers; a non-zero cell counts as
+    // written even if its bit in 'touched' is not set.
+    //
+    //   "TONM" version:int
+    //   touched:  long[1024]   one bit per written cell
+    //   overflow: long[1024]   one bit per cell whose value is in the overflow area
+    //   cells:    long[65536]  the value, or its offset in the overflow area
+    //   overflow area: (scale:int length:int unscaled two's complement:byte[length])*
+    static final class MemoryFile
+    {
+        private static final int MAGIC = 0x4D4E4F54;
+        private static final int VERSION = 1;
+        private static final int BITSET_LENGTH = Memory.SIZE >>> 6;
+        private static final int TOUCHED = 8;
+        private static final int OVERFLOW = TOUCHED + BITSET_LENGTH * 8;
+        private static final int CELLS = OVERFLOW + BITSET_LENGTH * 8;
+        private static final int LENGTH = CELLS + Memory.SIZE * 8;
+
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer mapping;
+
+        private MemoryFile(Path path, FileChannel channel, MappedByteBuffer mapping)
+        {
+            this.path = path;
+            this.channel = channel;
+            this.mapping = mapping;
+        }
+
+        // Maps the file, creating an empty one if there is none, and locks it
+        // for as long as it is open so runs cannot overwrite each other's changes
+        static MemoryFile open(Path path) throws IOException
+        {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try
+            {
+                if (channel.tryLock() == null)
+                {
+                    throw new IOException(path + " is in use by another program");
+                }
+                long size = channel.size();
+                if (size != 0 && size < LENGTH)
+                {
+                    throw new IOException(path + " is not a memory file");
+                }
+                MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, LENGTH);
+                mapping.order(ByteOrder.LITTLE_ENDIAN);
+                if (size == 0)
+                {
+                    mapping.putInt(0, MAGIC);
+                    mapping.putInt(4, VERSION);
+                }
+                else if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION)
+                {
+                    throw new IOException(path + " is not a memory file");
+                }
+                return new MemoryFile(path, channel, mapping);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                channel.close();
+                throw e;
+            }
+        }
+
+        // Fills cleared memory with the file's cells
+        void load(Memory memory) throws IOException
+        {
+            long[] touched = memory.touched;
+            long[] overflow = new long[BITSET_LENGTH];
+            cells(TOUCHED, BITSET_LENGTH).get(touched);
+            cells(OVERFLOW, BITSET_LENGTH).get(overflow);
+            cells(CELLS, Memory.SIZE).get(memory.values);
+
+            ByteBuffer area = overflowArea();
+            long[] values = memory.values;
+            int count = 0;
+            for (int word = 0; word < BITSET_LENGTH; word++)
+            {
+                long bits = touched[word] | overflow[word];
+                for (int address = word << 6; address < (word + 1) << 6; address++)
+                {
+                    if (values[address] != 0)
+                    {
+                        bits |= 1L << address;
+                    }
+                }
+                touched[word] = bits;
+                count += Long.bitCount(bits);
+
+                long big = overflow[word];
+                while (big != 0)
+                {
+                    int address = (word << 6) + Long.numberOfTrailingZeros(big);
+                    memory.big[address] = readBig(area, values[address]);
+                    values[address] = 0;
+                    big &= big - 1;
+                }
+            }
+            memory.touchedCount = count;
+        }
+
+        private BigDecimal readBig(ByteBuffer area, long offset) throws IOException
+        {
+            try
+            {
+                area.position((int) offset);
+                int scale = area.getInt();
+                byte[] unscaled = new byte[area.getInt()];
+                area.get(unscaled);
+                return new BigDecimal(new BigInteger(unscaled), scale);
+            }
+            catch (RuntimeException e)
+            {
+                throw new IOException("Malformed overflow area in memory file " + path);
+            }
+        }
+
+        private ByteBuffer overflowArea() throws IOException
+        {
+            long length = channel.size() - LENGTH;
+            if (length > Integer.MAX_VALUE)
+            {
+                throw new IOException("Malformed overflow area in memory file " + path);
+            }
+            ByteBuffer area = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+            while (area.hasRemaining())
+            {
+                if (channel.read(area, LENGTH + area.position()) < 0)
+                {
+                    throw new EOFException(path.toString());
+                }
+            }
+            area.flip();
+            return area;
+        }
+
+        // Writes back the cells that differ from the file and the whole
+        // overflow area, then forces both to disk
+        void save(Memory memory) throws IOException
+        {
+            LongBuffer touched = cells(TOUCHED, BITSET_LENGTH);
+            LongBuffer overflow = cells(OVERFLOW, BITSET_LENGTH);
+            LongBuffer cells = cells(CELLS, Memory.SIZE);
+            ByteArrayOutputStream area = new ByteArrayOutputStream();
+            for (int word = 0; word < BITSET_LENGTH; word++)
+            {
+                long bits = memory.touched[word];
+                long big = 0;
+                for (int address = word << 6; bits != 0 && address < (word + 1) << 6; address++)
+                {
+                    long value = memory.values[address];
+                    BigDecimal bigValue = memory.big[address];
+                    if (bigValue != null)
+                    {
+                        big |= 1L << address;
+                        value = area.size();
+                        writeBig(area, bigValue);
+                    }
+                    if (cells.get(address) != value)
+                    {
+                        cells.put(address, value);
+                    }
+                }
+                if (touched.get(word) != bits)
+                {
+                    touched.put(word, bits);
+                }
+                if (overflow.get(word) != big)
+                {
+                    overflow.put(word, big);
+                }
+            }
+            mapping.force();
+
+            ByteBuffer bytes = ByteBuffer.wrap(area.toByteArray());
+            while (bytes.hasRemaining())
+            {
+                channel.write(bytes, LENGTH + bytes.position());
+            }
+            channel.truncate(LENGTH + area.size());
+            channel.force(false);
+        }
+
+        private static void writeBig(ByteArrayOutputStream out, BigDecimal value)
+        {
+            byte[] unscaled = value.unscaledValue().toByteArray();
+            ByteBuffer entry = ByteBuffer.allocate(8 + unscaled.length).order(ByteOrder.LITTLE_ENDIAN);
+            entry.putInt(value.scale()).putInt(unscaled.length).put(unscaled);
+            out.write(entry.array(), 0, entry.capacity());
+        }
+
+        private LongBuffer cells(int offset, int count)
+        {
+            ByteBuffer slice = mapping.duplicate();
+            slice.position(offset).limit(offset + count * 8);
+            return slice.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        }
+
+        void close() throws IOException
+        {
+            // Also releases the lock
+            channel.close();
+        }
+    }
+
+    // Flight Recorder events, in the "Tonnyi" category. Loading an event
+    // class starts up the recorder's machinery, which costs a quarter of a
+    // second, so events are only created once Flight Recorder has been
+    // initialized (by -XX:StartFlightRecording or jcmd JFR.start).
+    @Name("tonnyi.ProgramLoad")
+    @Label("Program Load")
+    @Category("Tonnyi")
+    @Description("A program read from source, image or cache, decoded and optimized")
+    static final class LoadEvent extends jdk.jfr.Event
+    {
+        @Label("Source")
+        String source;
+
+        @Label("Instructions")
+        int instructions;
+
+        @Label("Labels")
+        int labels;
+
+        @Label("Unique Constants")
+        int constants;
+
+        @Label("Optimized")
+        boolean optimized;
+    }
+
+    @Name("tonnyi.ProgramRun")
+    @Label("Program Run")
+    @Category("Tonnyi")
+    @Description("One run of a program; instructions are counted up to the last backward jump, call or return")
+    static final class RunEvent extends jdk.jfr.Event
+    {
+        @Label("Source")
+        String source;
+
+        @Label("Engine")
+        String engine;
+
+        @Label("Instructions Executed")
+        long instructions;
+
+        @Label("Stop Reason")
+        @Description("halt, end (ran past the last instruction), error or limit: <kind>")
+        String stopReason;
+
+        @Label("Deepest Call Nesting")
+        int maxCallDepth;
+
+        @Label("Memory Cells Written")
+        int memoryCells;
+    }
+
+    @Name("tonnyi.Call")
+    @Label("Long Call")
+    @Category("Tonnyi")
+    @Description("A CALL that took longer than the threshold to return")
+    @Threshold("20 ms")
+    static final class CallEvent extends jdk.jfr.Event
+    {
+        @Label("Label")
+        String label;
+
+        @Label("Depth")
+        int depth;
+    }
+
+    @Name("tonnyi.InputWait")
+    @Label("Input Wait")
+    @Category("Tonnyi")
+    @Description("An INPUT instruction blocked reading the input stream")
+    @Threshold("20 ms")
+    static final class InputEvent extends jdk.jfr.Event
+    {
+        @Label("Token Mode")
+        boolean tokens;
+    }
+
+    // Live counters for every interpreter in the JVM, as the platform MXBean
+    // "Tonnyi:type=Metrics"
+    public interface MetricsMXBean
+    {
+        // Rate since the previous read of this attribute (or since metrics were enabled)
+        double getInstructionsPerSecond();
+
+        long getInstructionsExecuted();
+
+        int getActivePrograms();
+
+        long getProgramsRun();
+
+        // Written cells of the programs running now
+        long getMemoryCellsInUse();
+
+        // Deepest CALL nesting reached by any program
+        int getStackDepthHighWaterMark();
+
+        // Prints the trace of every program running with --trace to its
+        // error stream, as it stands; returns the number printed
+        int dumpTraces();
+
+        // Makes every program running with --checkpoint write one at its
+        // next backward transfer; returns the number asked
+        int requestCheckpoints();
+    }
+
+    // Registered by enableMetrics(), or by publish() for the operations
+    // alone, without counting. Running interpreters are kept in a set
+    // and read without locks, so the only cost to a program is the
+    // instruction counting on backward transfers and two set updates per run.
+    static final class Metrics implements MetricsMXBean
+    {
+        static final Metrics INSTANCE = new Metrics();
+        static volatile boolean enabled;
+        private static boolean registered;
+        private static boolean publishing;
+
+        private final Set<Tonnyi> active = ConcurrentHashMap.newKeySet();
+        private final LongAdder finishedInstructions = new LongAdder();
+        private final LongAdder programsRun = new LongAdder();
+        private final AtomicInteger highWater = new AtomicInteger();
+        private long lastInstructions;
+        private long lastRead = System.nanoTime();
+
+        static synchronized void enable()
+        {
+            if (enabled)
+            {
+                return;
+            }
+            register();
+            enabled = true;
+        }
+
+        // Publishes the MXBean for its operations, leaving counting off.
+        // Starting the platform MBean server takes a quarter of a second,
+        // so it is done on a daemon thread while the program runs.
+        static synchronized void publish()
+        {
+            if (publishing || registered)
+            {
+                return;
+            }
+            publishing = true;
+            Thread thread = new Thread(() ->
+            {
+                try
+                {
+                    register();
+                }
+                catch (IllegalStateException e)
+                {
+                    // Already taken, say by another copy of the class; the program runs on without it
+                }
+            }, "Tonnyi MXBean");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static synchronized void register()
+        {
+            if (registered)
+            {
+                return;
+            }
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("Tonnyi:type=Metrics"));
+            }
+            catch (JMException e)
+            {
+                throw new IllegalStateException("Cannot register the metrics MXBean", e);
+            }
+            registered = true;
+        }
+
+        void started(Tonnyi vm)
+        {
+            active.add(vm);
+        }
+
+        void finished(Tonnyi vm)
+        {
+            active.remove(vm);
+            finishedInstructions.add(vm.executed);
+            programsRun.increment();
+            highWater.accumulateAndGet(vm.returnStack.highest(), Math::max);
+        }
+
+        @Override
+        public synchronized double getInstructionsPerSecond()
+        {
+            long instructions = getInstructionsExecuted();
+            long now = System.nanoTime();
+            double rate = now == lastRead ? 0 : (instructions - lastInstructions) * 1e9 / (now - lastRead);
+            lastInstructions = instructions;
+            lastRead = now;
+            return rate;
+        }
+
+        @Override
+        public long getInstructionsExecuted()
+        {
+            long instructions = finishedInstructions.sum();
+            // Running programs are counted as of their last poll
+            for (Tonnyi vm : active)
+            {
+                instructions += vm.published;
+            }
+            return instructions;
+        }
+
+        @Override
+        public int getActivePrograms()
+        {
+            return active.size();
+        }
+
+        @Override
+        public long getProgramsRun()
+        {
+            return programsRun.sum();
+        }
+
+        @Override
+        public long getMemoryCellsInUse()
+        {
+            long cells = 0;
+            for (Tonnyi vm : active)
+            {
+                cells += vm.memory.touchedCount();
+            }
+            return cells;
+        }
+
+        @Override
+        public int getStackDepthHighWaterMark()
+        {
+            int highest = highWater.get();
+            for (Tonnyi vm : active)
+            {
+                highest = Math.max(highest, vm.returnStack.highest());
+            }
+            return highest;
+        }
+
+        @Override
+        public int dumpTraces()
+        {
+            int dumped = 0;
+            for (Tonnyi vm : Trace.TRACING)
+            {
+                vm.trace.dump(vm.errors, "requested through JMX", vm.programCounter);
+                dumped++;
+            }
+            return dumped;
+        }
+
+        @Override
+        public int requestCheckpoints()
+        {
+            int requested = 0;
+            for (Tonnyi vm : Checkpoint.CHECKPOINTING)
+            {
+                vm.checkpointRequested = true;
+                requested++;
+            }
+            return requested;
+        }
+    }
+
+    // Counters behind --profile. Every executed instruction bumps a counter
+    // for its pc and for the current node of the call tree; the clock is
+    // only read around CALL and RETURN and around one instruction in about
+    // SAMPLE_INTERVAL, from which the time per opcode family is estimated.
+    // Line counts and memory accesses are worked out from the pc counters
+    // when the report is written, since every operand address is fixed at load.
+    static final class Profiler
+    {
+        private static final int SAMPLE_INTERVAL = 64;
+        // Deeper recursion is folded into the deepest node of the call tree
+        private static final int MAX_TREE_DEPTH = 512;
+        private static final int TOP = 20;
+        private static final String[] FAMILIES =
+        {
+            "System", "Memory", "Arithmetic", "Bitwise", "Control flow", "Stack",
+            "I/O", "Special", "Debug", "Block memory", "Superinstruction", "Invalid"
+        };
+
+        private final Program program;
+        private final long[] counts;
+        // Label defined at each pc, to name CALL targets
+        private final String[] labels;
+        private long total;
+
+        private final long[] sampleNanos = new long[FAMILIES.length];
+        private final long[] samples = new long[FAMILIES.length];
+        private final long timerCost;
+        private int untilSample = 1;
+        private int seed = 0x9E3779B9;
+
+        private final Map<String, Calls> calls = new TreeMap<>();
+        private Calls[] frames = new Calls[64];
+        private long[] frameCounts = new long[64];
+        private long[] frameStarts = new long[64];
+        private int depth;
+
+        private final Node root = new Node("program", null);
+        private Node current = root;
+        private int treeDepth;
+        private int foldedDepth;
+
+        Profiler(Program program)
+        {
+            this.program = program;
+            counts = new long[program.code.length];
+            labels = new String[program.code.length + 1];
+            for (Map.Entry<String, Integer> label : new TreeMap<>(program.labels).entrySet())
+            {
+                int pc = program.pcForLine(label.getValue());
+                if (labels[pc] == null)
+                {
+                    labels[pc] = label.getKey();
+                }
+            }
+
+            long cost = Long.MAX_VALUE;
+            for (int i = 0; i < 1000; i++)
+            {
+                long start = System.nanoTime();
+                cost = Math.min(cost, System.nanoTime() - start);
+            }
+            timerCost = cost;
+        }
+
+        // True when the caller should time this instruction and pass the result to sample()
+        boolean count(int pc)
+        {
+            counts[pc]++;
+            total++;
+            current.self++;
+            if (--untilSample > 0)
+            {
+                return false;
+            }
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            untilSample = 1 + (seed & (2 * SAMPLE_INTERVAL - 1));
+            return true;
+        }
+
+        void sample(int opcode, long nanos)
+        {
+            int family = family(opcode);
+            sampleNanos[family] += Math.max(0, nanos - timerCost);
+            samples[family]++;
+        }
+
+        void enter(int target)
+        {
+            String name = target < labels.length && labels[target] != null ? labels[target] : "pc " + target;
+            Calls label = calls.get(name);
+            if (label == null)
+            {
+                label = new Calls(name);
+                calls.put(name, label);
+            }
+            label.calls++;
+            label.active++;
+            if (depth == frames.length)
+            {
+                frames = Arrays.copyOf(frames, depth * 2);
+                frameCounts = Arrays.copyOf(frameCounts, depth * 2);
+                frameStarts = Arrays.copyOf(frameStarts, depth * 2);
+            }
+            frames[depth] = label;
+            frameCounts[depth] = total;
+            frameStarts[depth] = System.nanoTime();
+            depth++;
+
+            if (treeDepth < MAX_TREE_DEPTH)
+            {
+                current = current.child(name);
+                treeDepth++;
+            }
+            else
+            {
+                foldedDepth++;
+            }
+        }
+
+        // Only the outermost frame of a label adds to its inclusive totals,
+        // so recursion is not counted once per level
+        void exit()
+        {
+            if (depth == 0)
+            {
+                return;
+            }
+            Calls label = frames[--depth];
+            if (--label.active == 0)
+            {
+                label.instructions += total - frameCounts[depth];
+                label.nanos += System.nanoTime() - frameStarts[depth];
+            }
+
+            if (foldedDepth > 0)
+            {
+                foldedDepth--;
+            }
+            else
+            {
+                current = current.parent;
+                treeDepth--;
+            }
+        }
+
+        // Closes the calls still open when the program stopped
+        void finish()
+        {
+            while (depth > 0)
+            {
+                exit();
+            }
+        }
+
+        void report(PrintStream out, long nanos)
+        {
+            Instruction[] code = program.code;
+            Map<Integer, long[]> lines = new TreeMap<>();
+            Map<Integer, String> sources = new HashMap<>();
+            long[] cells = new long[Memory.SIZE];
+            long[] families = new long[FAMILIES.length];
+            for (int pc = 0; pc < code.length; pc++)
+            {
+                long count = counts[pc];
+                if (count == 0)
+                {
+                    continue;
+                }
+                families[family(code[pc].opcode)] += count;
+                Instruction[] parts = code[pc].parts != null ? code[pc].parts : new Instruction[] {code[pc]};
+                for (Instruction part : parts)
+                {
+                    long[] line = lines.get(part.line);
+                    if (line == null)
+                    {
+                        line = new long[1];
+                        lines.put(part.line, line);
+                        sources.put(part.line, part.text);
+                    }
+                    line[0] += count;
+                    for (Operand operand : part.operands)
+                    {
+                        if (operand.kind == Operand.ADDRESS)
+                        {
+                            cells[operand.address] += count;
+                        }
+                    }
+                }
+            }
+
+            // Superinstructions count once for each instruction they stand for
+            long executed = 0;
+            for (long[] line : lines.values())
+            {
+                executed += line[0];
+            }
+            out.println("Profile: " + executed + " source instruction(s), " + total + " after optimization, in "
+                    + nanos / 1000000 + " ms");
+
+            out.println();
+            out.println("Hottest lines:");
+            out.println(String.format("  %6s %14s %7s  %s", "LINE", "COUNT", "%", "SOURCE"));
+            List<Map.Entry<Integer, long[]>> hot = new ArrayList<>(lines.entrySet());
+            hot.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+            for (Map.Entry<Integer, long[]> line : hot.subList(0, Math.min(TOP, hot.size())))
+            {
+                out.println(String.format("  %6d %14d %6.2f%%  %s", line.getKey() + 1, line.getValue()[0],
+                        percent(line.getValue()[0], executed), sources.get(line.getKey())));
+            }
+
+            out.println();
+            out.println("Opcode families (time estimated from 1 in " + SAMPLE_INTERVAL + " instructions):");
+            out.println(String.format("  %-18s %14s %12s %7s", "FAMILY", "COUNT", "EST. ms", "%"));
+            double[] estimates = new double[FAMILIES.length];
+            double estimated = 0;
+            for (int family = 0; family < FAMILIES.length; family++)
+            {
+                if (samples[family] > 0)
+                {
+                    estimates[family] = families[family] * (double) sampleNanos[family] / samples[family];
+                    estimated += estimates[family];
+                }
+            }
+            for (int family = 0; family < FAMILIES.length; family++)
+            {
+                if (families[family] > 0)
+                {
+                    out.println(samples[family] == 0
+                            ? String.format("  %-18s %14d %12s %7s", FAMILIES[family], families[family], "-", "-")
+                            : String.format("  %-18s %14d %12.3f %6.2f%%", FAMILIES[family], families[family],
+                                    estimates[family] / 1e6, estimated == 0 ? 0 : 100 * estimates[family] / estimated));
+                }
+            }
+
+            if (!calls.isEmpty())
+            {
+                out.println();
+                out.println("Calls (inclusive of callees; recursive calls counted once):");
+                out.println(String.format("  %-24s %12s %12s %16s", "LABEL", "CALLS", "INCL. ms", "INCL. COUNT"));
+                List<Calls> byTime = new ArrayList<>(calls.values());
+                byTime.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+                for (Calls label : byTime)
+                {
+                    out.println(String.format("  %-24s %12d %12.3f %16d", label.name, label.calls, label.nanos / 1e6,
+                            label.instructions));
+                }
+            }
+
+            out.println();
+            out.println("Memory (accesses through instruction operands):");
+            List<Integer> hottest = new ArrayList<>();
+            long[] pages = new long[Memory.SIZE >>> 8];
+            for (int address = 0; address < Memory.SIZE; address++)
+            {
+                if (cells[address] > 0)
+                {
+                    hottest.add(address);
+                    pages[address >>> 8] += cells[address];
+                }
+            }
+            hottest.sort((a, b) -> Long.compare(cells[b], cells[a]));
+            StringBuilder line = new StringBuilder("  hottest cells:");
+            for (int address : hottest.subList(0, Math.min(TOP, hottest.size())))
+            {
+                line.append(String.format(" 0x%04X=%d", address, cells[address]));
+            }
+            out.println(line);
+            line.setLength(0);
+            line.append("  by 256-cell page:");
+            for (int page = 0; page < pages.length; page++)
+            {
+                if (pages[page] > 0)
+                {
+                    line.append(String.format(" 0x%02Xxx=%d", page, pages[page]));
+                }
+            }
+            out.println(line);
+            out.flush();
+        }
+
+        // One "frame;frame;frame count" line per call path, in instructions
+        // executed there, as read by flamegraph.pl and speedscope
+        void writeStacks(Path file) throws IOException
+        {
+            try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+            {
+                writeStacks(out, root, new StringBuilder(root.name));
+            }
+        }
+
+        private static void writeStacks(Writer out, Node node, StringBuilder path) throws IOException
+        {
+            if (node.self > 0)
+            {
+                out.write(path + " " + node.self + "\n");
+            }
+            if (node.children != null)
+            {
+                int length = path.length();
+                for (Node child : node.children.values())
+                {
+                    path.append(';').append(child.name.replace(';', '_').replace(' ', '_'));
+                    writeStacks(out, child, path);
+                    path.setLength(length);
+                }
+            }
         }
 
-        if (shouldJump)
+        private static double percent(long part, long whole)
         {
-            jump(label);
+            return whole == 0 ? 0 : 100.0 * part / whole;
         }
-    }
 
-    private void call(String label)
-    {
-        callStack.push(new BigDecimal(programCounter));
-        jump(label);
-    }
+        private static int family(int opcode)
+        {
+            if (opcode >= COMPARE_BRANCH)
+            {
+                return 10;
+            }
+            if (opcode < 0)
+            {
+                return 11;
+            }
+            if (opcode == PRINT_COUNTED_STRING)
+            {
+                return 6;
+            }
+            return opcode <= DUMP_MEMORY ? 0
+                    : opcode <= CLEAR ? 1
+                    : opcode <= ABSOLUTE ? 2
+                    : opcode <= SHIFT_RIGHT ? 3
+                    : opcode <= RETURN ? 4
+                    : opcode <= POP ? 5
+                    : opcode <= PRINT_STRING ? 6
+                    : opcode == RANDOM ? 7
+                    : opcode <= DEBUG_OFF ? 8
+                    : 9;
+        }
 
-    private void returnFromCall()
-    {
-        if (!callStack.isEmpty())
+        private static final class Calls
         {
-            programCounter = callStack.pop().intValue();
+            final String name;
+            long calls;
+            long instructions;
+            long nanos;
+            // Frames of this label currently open; only the outermost one is timed
+            int active;
+
+            Calls(String name)
+            {
+                this.name = name;
+            }
         }
-        else
+
+        private static final class Node
         {
-            running = false;
+            final String name;
+            final Node parent;
+            Map<String, Node> children;
+            long self;
+
+            Node(String name, Node parent)
+            {
+                this.name = name;
+                this.parent = parent;
+            }
+
+            Node child(String name)
+            {
+                if (children == null)
+                {
+                    children = new LinkedHashMap<>();
+                }
+                Node child = children.get(name);
+                if (child == null)
+                {
+                    child = new Node(name, this);
+                    children.put(name, child);
+                }
+                return child;
+            }
         }
     }
 
-    private void halt()
+    // Runs every .ton program in a directory on a fixed pool of worker
+    // threads, each on its own interpreter with the settings of a template
+    // one. INPUT reads from name.in next to the program (empty if there is
+    // none), output goes to name.out and anything written to stderr to
+    // name.err. Programs with identical sources are decoded and optimized
+    // once and shared, since a Program holds no interpreter state.
+    static final class Batch
     {
-        running = false;
-    }
+        private final Tonnyi settings;
+        private final int workers;
+        // Keyed by the source hash the image cache uses
+        private final ConcurrentMap<String, Program> programs = new ConcurrentHashMap<>();
 
-    // Stack Operations
-    private void push(String address)
-    {
-        callStack.push(getValue(address));
-    }
+        Batch(Tonnyi settings, int workers)
+        {
+            if (workers < 1)
+            {
+                throw new IllegalArgumentException("Worker count must be positive: " + workers);
+            }
+            this.settings = settings;
+            this.workers = workers;
+        }
 
-    private void pop(String address)
-    {
-        try
+        // Prints one line per program, in file name order, as results come
+        // in, then a summary; returns the exit status for the batch: 0 if every
+        // program finished normally, FAILURE_EXIT_STATUS if any failed or had
+        // an error, otherwise LIMIT_EXIT_STATUS if any was stopped by a limit
+        int run(Path directory, PrintStream report) throws IOException
         {
-            if (!callStack.isEmpty())
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*.ton"))
             {
-                setValue(address, callStack.pop());
+                for (Path file : entries)
+                {
+                    if (Files.isRegularFile(file))
+                    {
+                        files.add(file);
+                    }
+                }
             }
-            else
+            Collections.sort(files);
+
+            long start = System.nanoTime();
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, Math.max(files.size(), 1)));
+            List<Future<Result>> pending = new ArrayList<>(files.size());
+            for (Path file : files)
+            {
+                pending.add(pool.submit(() -> run(file)));
+            }
+            pool.shutdown();
+
+            int[] counts = new int[Result.STATUSES.length];
+            report.println(String.format("%-32s %-6s %10s  %s", "PROGRAM", "STATUS", "TIME (ms)", "DETAIL"));
+            for (Future<Result> future : pending)
+            {
+                Result result;
+                try
+                {
+                    result = future.get();
+                }
+                catch (InterruptedException e)
+                {
+                    pool.shutdownNow();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Batch interrupted");
+                }
+                catch (ExecutionException e)
+                {
+                    throw new IllegalStateException(e.getCause());
+                }
+                counts[result.status]++;
+                report.println(String.format("%-32s %-6s %10.1f  %s", result.name, Result.STATUSES[result.status],
+                        result.nanos / 1e6, result.detail));
+            }
+
+            report.println(files.size() + " program(s) in " + (System.nanoTime() - start) / 1000000 + " ms on "
+                    + Math.min(workers, Math.max(files.size(), 1)) + " worker(s): " + counts[Result.OK] + " ok, "
+                    + counts[Result.ERROR] + " error, " + counts[Result.LIMIT] + " limit, "
+                    + counts[Result.FAILED] + " failed");
+            report.flush();
+            if (counts[Result.ERROR] > 0 || counts[Result.FAILED] > 0)
             {
-                System.out.println("Error: Stack underflow - cannot pop from empty stack");
+                return FAILURE_EXIT_STATUS;
             }
+            return counts[Result.LIMIT] > 0 ? LIMIT_EXIT_STATUS : 0;
         }
-        catch (Exception e)
+
+        private Result run(Path file)
         {
-            System.out.println("Error in pop operation: " + e.getMessage());
-        }
-    }
+            String name = file.getFileName().toString();
+            String base = name.substring(0, name.length() - ".ton".length());
+            Path input = file.resolveSibling(base + ".in");
+            Path error = file.resolveSibling(base + ".err");
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            try (InputStream in = Files.isRegularFile(input)
+                    ? Files.newInputStream(input) : new ByteArrayInputStream(new byte[0]);
+                 OutputStream out = Files.newOutputStream(file.resolveSibling(base + ".out")))
+            {
+                Tonnyi vm = new Tonnyi(settings, out, in);
+                vm.errors = new PrintStream(errors, true);
+                vm.source = file.toString();
+                if (vm.profiling)
+                {
+                    // The report goes to name.err with the rest of stderr
+                    vm.setProfileStacks(file.resolveSibling(base + ".collapsed"));
+                }
+                Program program = program(vm, file.toString());
 
-    private void pushAll()
-    {
-        memory.keySet().stream()
-                .sorted()
-                .forEach(key -> callStack.push(memory.get(key)));
-    }
+                start = System.nanoTime();
+                vm.execute(program);
+                long nanos = System.nanoTime() - start;
 
-    private void popAll()
-    {
-        memory.keySet().stream()
-                .sorted()
-                .forEach(key ->
+                vm.errors.flush();
+                if (errors.size() > 0)
+                {
+                    Files.write(error, errors.toByteArray());
+                }
+                else
+                {
+                    Files.deleteIfExists(error);
+                }
+                if (vm.exceededLimit != null)
+                {
+                    return new Result(name, Result.LIMIT, nanos, vm.describeLimit(vm.exceededLimit));
+                }
+                return vm.failed
+                        ? new Result(name, Result.ERROR, nanos, "instruction failed, see " + error.getFileName())
+                        : new Result(name, Result.OK, nanos, "");
+            }
+            catch (IOException | RuntimeException e)
+            {
+                return new Result(name, Result.FAILED, System.nanoTime() - start, String.valueOf(e.getMessage()));
+            }
+        }
+
+        private Program program(Tonnyi vm, String filename) throws IOException
+        {
+            try
+            {
+                Source source = Source.read(filename);
+                return programs.computeIfAbsent(ProgramImage.hex(source.hash), key ->
                 {
-                    if (!callStack.isEmpty())
+                    try
+                    {
+                        return vm.load(source);
+                    }
+                    catch (IOException e)
                     {
-                        setValue(key, callStack.pop());
+                        throw new UncheckedIOException(e);
                     }
                 });
-    }
-
-    // I/O Operations
-    private void input(String address)
-    {
-        Scanner scanner = new Scanner(System.in);
-        try
-        {
-            BigDecimal inputValue = new BigDecimal(scanner.nextLine());
-            setValue(address, inputValue);
+            }
+            catch (UncheckedIOException e)
+            {
+                throw e.getCause();
+            }
         }
-        catch (NumberFormatException e)
+
+        static final class Result
         {
-            System.out.println("Error: Invalid number format. Please enter a valid number.");
+            static final int OK = 0;
+            static final int ERROR = 1;
+            static final int LIMIT = 2;
+            static final int FAILED = 3;
+            static final String[] STATUSES = {"ok", "error", "limit", "failed"};
+
+            final String name;
+            final int status;
+            final long nanos;
+            final String detail;
+
+            Result(String name, int status, long nanos, String detail)
+            {
+                this.name = name;
+                this.status = status;
+                this.nanos = nanos;
+                this.detail = detail;
+            }
         }
     }
 
-    private void printChar(String address)
+    public static void main(String[] args)
     {
-        BigDecimal value = getValue(address);
-        int charValue = value.intValue();
-        System.out.print((char) charValue);
-    }
+        Tonnyi esolang = new Tonnyi();
+        String filename = null;
+        boolean batch = false;
+        boolean defaultStacks = false;
+        int workers = Runtime.getRuntime().availableProcessors();
+        Path checkpointFile = null;
+        long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
 
-    private void printString(String startAddress)
-    {
-        try
+        for (String arg : args)
         {
-            int i = 0;
-            while (true)
+            if (arg.equals("--autoflush"))
+            {
+                esolang.setAutoFlush(true);
+            }
+            else if (arg.startsWith("--engine="))
             {
-                String currentAddr;
-                if (startAddress.startsWith("0x"))
+                String name = arg.substring("--engine=".length());
+                if (!name.equals("tiered") && !name.equals("switch") && !name.equals("threaded")
+                        && !name.equals("compiled"))
                 {
-                    int baseAddr = Integer.parseInt(startAddress.substring(2), 16);
-                    currentAddr = String.format("0x%04X", baseAddr + i);
-
-                    if (!isValidAddress(currentAddr))
-                    {
-                        System.out.println("Error: String access beyond memory bounds at " + currentAddr);
-                        break;
-                    }
-
-                    BigDecimal value = getValue(currentAddr);
-                    if (value.compareTo(BigDecimal.ZERO) == 0)
+                    System.out.println("Unknown engine: " + name);
+                    return;
+                }
+                esolang.setEngine(Engine.valueOf(name.toUpperCase(Locale.ROOT)));
+            }
+            else if (arg.equals("--compile"))
+            {
+                esolang.setEngine(Engine.COMPILED);
+            }
+            else if (arg.equals("--no-opt"))
+            {
+                esolang.setOptimize(false);
+            }
+            else if (arg.equals("--opt-report"))
+            {
+                esolang.setOptimizationReport(true);
+            }
+            else if (arg.equals("--stats"))
+            {
+                esolang.setStatistics(true);
+            }
+            else if (arg.equals("--no-cache"))
+            {
+                esolang.setCacheDirectory(null);
+            }
+            else if (arg.startsWith("--cache-dir="))
+            {
+                esolang.setCacheDirectory(Paths.get(arg.substring("--cache-dir=".length())));
+            }
+            else if (arg.startsWith("--save-image="))
+            {
+                esolang.setImagePath(Paths.get(arg.substring("--save-image=".length())));
+            }
+            else if (arg.startsWith("--tier-threshold="))
+            {
+                String value = arg.substring("--tier-threshold=".length());
+                try
+                {
+                    esolang.setTierThreshold(Integer.parseInt(value));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.out.println("Invalid tier threshold: " + value);
+                    return;
+                }
+            }
+            else if (arg.startsWith("--max-call-depth="))
+            {
+                String value = arg.substring("--max-call-depth=".length());
+                try
+                {
+                    esolang.setMaxCallDepth(Integer.parseInt(value));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.out.println("Invalid call depth limit: " + value);
+                    return;
+                }
+            }
+            else if (arg.startsWith("--max-instructions="))
+            {
+                String value = arg.substring("--max-instructions=".length());
+                try
+                {
+                    esolang.setInstructionLimit(Long.parseLong(value));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.out.println("Invalid instruction limit: " + value);
+                    return;
+                }
+            }
+            else if (arg.startsWith("--max-time="))
+            {
+                String value = arg.substring("--max-time=".length());
+                try
+                {
+                    esolang.setTimeLimit(Long.parseLong(value));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.out.println("Invalid time limit: " + value);
+                    return;
+                }
+            }
+            else if (arg.startsWith("--max-cells="))
+            {
+                String value = arg.substring("--max-cells=".length());
+                try
+                {
+                    esolang.setCellLimit(Integer.parseInt(value));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.out.println("Invalid memory cell limit: " + value);
+                    return;
+                }
+            }
+            else if (arg.startsWith("--trace="))
+            {
+                String value = arg.substring("--trace=".length());
+                try
+                {
+                    esolang.setTrace(Integer.parseInt(value));
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.out.println("Invalid trace length: " + value + " (at most " + MAX_TRACE_LENGTH + ")");
+                    return;
+                }
+            }
+            else if (arg.equals("--trace-on-halt"))
+            {
+                esolang.setTraceOnHalt(true);
+            }
+            else if (arg.startsWith("--checkpoint="))
+            {
+                checkpointFile = Paths.get(arg.substring("--checkpoint=".length()));
+            }
+            else if (arg.startsWith("--checkpoint-every="))
+            {
+                String value = arg.substring("--checkpoint-every=".length());
+                try
+                {
+                    checkpointInterval = Long.parseLong(value);
+                    if (checkpointInterval < 0)
                     {
-                        break;
+                        throw new NumberFormatException();
                     }
-
-                    int charValue = value.intValue();
-                    System.out.print((char) charValue);
-                    i++;
-
-                    if (i > 1000)
+                }
+                catch (IllegalArgumentException e)
+                {
+                    System.out.println("Invalid checkpoint interval: " + value);
+                    return;
+                }
+            }
+            else if (arg.equals("--resume"))
+            {
+                esolang.setResume(true);
+            }
+            else if (arg.startsWith("--memory-file="))
+            {
+                esolang.setMemoryFile(Paths.get(arg.substring("--memory-file=".length())));
+            }
+            else if (arg.equals("--jmx"))
+            {
+                enableMetrics();
+            }
+            else if (arg.equals("--profile"))
+            {
+                esolang.setProfiling(true);
+                defaultStacks = true;
+            }
+            else if (arg.startsWith("--profile="))
+            {
+                esolang.setProfiling(true);
+                esolang.setProfileStacks(Paths.get(arg.substring("--profile=".length())));
+                defaultStacks = false;
+            }
+            else if (arg.equals("--batch"))
+            {
+                batch = true;
+            }
+            else if (arg.startsWith("--workers="))
+            {
+                String value = arg.substring("--workers=".length());
+                try
+                {
+                    workers = Integer.parseInt(value);
+                    if (workers < 1)
                     {
-                        System.out.println("Error: String too long or missing null terminator");
-                        break;
+                        throw new NumberFormatException();
                     }
                 }
-                else
+                catch (IllegalArgumentException e)
                 {
-                    System.out.println("Error: Invalid string starting address '" + startAddress + "'");
-                    break;
+                    System.out.println("Invalid worker count: " + value);
+                    return;
                 }
             }
+            else if (arg.equals("--input-mode=tokens") || arg.equals("--input-mode=lines"))
+            {
+                esolang.setInputTokens(arg.endsWith("tokens"));
+            }
+            else if (arg.startsWith("--"))
+            {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+            else if (filename == null)
+            {
+                filename = arg;
+            }
         }
-        catch (NumberFormatException e)
+
+        if (checkpointFile != null)
         {
-            System.out.println("Error: Invalid address in printString '" + startAddress + "'");
+            if (batch)
+            {
+                System.out.println("--checkpoint cannot be used with --batch");
+                return;
+            }
+            esolang.setCheckpoint(checkpointFile, checkpointInterval);
         }
-        catch (Exception e)
+        else if (esolang.resume)
         {
-            System.out.println("Error in printString: " + e.getMessage());
+            System.out.println("--resume needs --checkpoint=FILE");
+            return;
         }
-    }
-
-    // Special Operations
-    private void random(String address)
-    {
-        BigDecimal randomValue = new BigDecimal(Math.random() * 100);
-        setValue(address, randomValue);
-    }
-
-    private void swap(String addr1, String addr2)
-    {
-        BigDecimal temp = getValue(addr1);
-        setValue(addr1, getValue(addr2));
-        setValue(addr2, temp);
-    }
-
-    private void clear(String address)
-    {
-        setValue(address, BigDecimal.ZERO);
-    }
-
-    private void dumpMemory()
-    {
-        if (debugMode)
+        if (batch && esolang.memoryFile != null)
         {
-            System.out.println("\n=== Memory Dump ===");
-            memory.entrySet().stream()
-                    .sorted(Map.Entry.comparingByKey())
-                    .forEach(entry -> System.out.println(entry.getKey() + ": " + entry.getValue()));
-            System.out.println("==================\n");
+            System.out.println("--memory-file cannot be used with --batch");
+            return;
+        }
+        if (batch && esolang.profileStacks != null)
+        {
+            System.out.println("--profile=FILE cannot be used with --batch; use --profile to write name.collapsed for each program");
+            return;
         }
-        // In normal mode, do nothing (no output)
-    }
 
-    public static void main(String[] args)
-    {
-        Tonnyi esolang = new Tonnyi();
+        if (batch)
+        {
+            if (filename == null)
+            {
+                System.out.println("--batch needs a directory of .ton programs");
+                return;
+            }
+            int status;
+            try
+            {
+                status = new Batch(esolang, workers).run(Paths.get(filename), System.out);
+            }
+            catch (IOException e)
+            {
+                System.out.println("Error reading directory: " + e.getMessage());
+                status = FAILURE_EXIT_STATUS;
+            }
+            if (status != 0)
+            {
+                System.exit(status);
+            }
+            return;
+        }
 
         // Check if filename was provided as command line argument
-        if (args.length > 0)
+        if (filename != null)
         {
-            String filename = args[0];
-            // Ensure it has .ton extension
-            if (!filename.toLowerCase().endsWith(".ton"))
+            // Ensure it has .ton extension (or is a .tonc image)
+            if (!filename.toLowerCase().endsWith(".ton") && !filename.endsWith(ProgramImage.EXTENSION))
             {
                 filename = filename + ".ton";
             }
+            if (defaultStacks)
+            {
+                esolang.setProfileStacks(Paths.get(filename.substring(0, filename.lastIndexOf('.')) + ".collapsed"));
+            }
 
             try
             {
@@ -936,6 +7623,10 @@ public class Tonnyi
                 System.out.println("Error executing program: " + e.getMessage());
                 System.out.println("File not found: " + filename);
             }
+            if (esolang.getExceededLimit() != null)
+            {
+                System.exit(LIMIT_EXIT_STATUS);
+            }
         }
         else
         {
@@ -951,13 +7642,78 @@ public class Tonnyi
         System.out.println("7-bit instruction set with 128 possible operations");
         System.out.println();
         System.out.println("USAGE:");
-        System.out.println("  java Tonnyi <filename.ton>");
+        System.out.println("  java Tonnyi [options] <filename.ton>");
+        System.out.println();
+        System.out.println("OPTIONS:");
+        System.out.println("  --autoflush      Flush output after every print instruction");
+        System.out.println("  --engine=tiered|switch|threaded|compiled");
+        System.out.println("                   Interpret and compile hot loops (default), dispatch");
+        System.out.println("                   with one opcode switch per instruction, with");
+        System.out.println("                   pre-bound handlers, or compile the whole program to");
+        System.out.println("                   JVM bytecode up front");
+        System.out.println("  --compile        Same as --engine=compiled");
+        System.out.println("  --tier-threshold=N");
+        System.out.println("                   Backward jumps to one label before the tiered engine");
+        System.out.println("                   compiles (default " + DEFAULT_TIER_THRESHOLD + ")");
+        System.out.println("  --max-call-depth=N");
+        System.out.println("                   Nested CALLs allowed before the program is stopped");
+        System.out.println("                   (default " + DEFAULT_MAX_CALL_DEPTH + ")");
+        System.out.println("  --max-instructions=N, --max-time=MS, --max-cells=N");
+        System.out.println("                   Stop the program once it has executed more than N");
+        System.out.println("                   instructions, run longer than MS milliseconds, or");
+        System.out.println("                   written more than N memory cells (default: no limit).");
+        System.out.println("                   Checked on backward jumps, calls and returns; a");
+        System.out.println("                   program stopped by any limit exits with status " + LIMIT_EXIT_STATUS);
+        System.out.println("  --no-opt         Run the program exactly as written, without peephole");
+        System.out.println("                   optimization or superinstructions");
+        System.out.println("  --opt-report     Print what the optimizer removed and fused to stderr");
+        System.out.println("  --stats          Print instruction, label and unique constant counts");
+        System.out.println("                   to stderr");
+        System.out.println("  --no-cache       Always parse the source instead of using the cache of");
+        System.out.println("                   decoded programs in ~/.cache/tonnyi");
+        System.out.println("  --cache-dir=DIR  Keep the cache of decoded programs in DIR");
+        System.out.println("  --save-image=FILE");
+        System.out.println("                   Also write the decoded program to FILE, a .tonc image");
+        System.out.println("                   that can be run directly");
+        System.out.println("  --input-mode=lines|tokens");
+        System.out.println("                   INPUT reads one number per line (default) or");
+        System.out.println("                   whitespace-separated numbers");
+        System.out.println("  --profile[=FILE] Count executions per line, opcode family, CALL target");
+        System.out.println("                   and memory cell, print a report to stderr when the");
+        System.out.println("                   program ends and write its call stacks to FILE");
+        System.out.println("                   (default: name.collapsed) for flame graph tools");
+        System.out.println("  --trace=N        Keep the last N executed instructions with their operand");
+        System.out.println("                   values and print them to stderr when an instruction");
+        System.out.println("                   fails or through the dumpTraces operation of the MXBean");
+        System.out.println("                   Tonnyi:type=Metrics (runs interpreted)");
+        System.out.println("  --trace-on-halt  Also print the trace when the program stops normally");
+        System.out.println("  --checkpoint=FILE");
+        System.out.println("                   Save the program's state to FILE when a limit stops it");
+        System.out.println("                   or on the requestCheckpoints operation of the MXBean");
+        System.out.println("                   Tonnyi:type=Metrics; deleted when the program ends");
+        System.out.println("  --checkpoint-every=N");
+        System.out.println("                   Also save it every N instructions (default " + DEFAULT_CHECKPOINT_INTERVAL + ")");
+        System.out.println("  --resume         Carry on from the --checkpoint file if there is one");
+        System.out.println("  --memory-file=FILE");
+        System.out.println("                   Start with the memory saved in FILE and save it back");
+        System.out.println("                   there when the program ends (created if missing)");
+        System.out.println("  --jmx            Publish live counters as the MXBean Tonnyi:type=Metrics");
+        System.out.println("  --batch          Treat the argument as a directory and run every .ton");
+        System.out.println("                   program in it concurrently: name.in is its input,");
+        System.out.println("                   output goes to name.out and stderr to name.err, and a");
+        System.out.println("                   report of each program's status and time is printed;");
+        System.out.println("                   with --profile, each program's report goes to name.err");
+        System.out.println("                   and its call stacks to name.collapsed;");
+        System.out.println("                   exits with status " + FAILURE_EXIT_STATUS + " if any program failed or had an");
+        System.out.println("                   error, else " + LIMIT_EXIT_STATUS + " if any hit a limit");
+        System.out.println("  --workers=N      Programs run at once by --batch (default: one per CPU)");
         System.out.println();
         System.out.println("EXAMPLE:");
         System.out.println("  java Tonnyi program.ton");
         System.out.println("  java Tonnyi calculator");
+        System.out.println("  java Tonnyi --batch --max-time=2000 submissions/");
         System.out.println();
-        System.out.println("INSTRUCTION SET (44 instructions):");
+        System.out.println("INSTRUCTION SET (48 instructions):");
         System.out.println();
         System.out.println("SYSTEM OPERATIONS (0-2):");
         System.out.println("  0b0000000  HALT");
@@ -1023,6 +7779,14 @@ public class Tonnyi
         System.out.println("  0b0101010  DEBUG MODE ON");
         System.out.println("  0b0101011  DEBUG MODE OFF");
         System.out.println();
+        System.out.println("BLOCK MEMORY OPERATIONS (44-46):");
+        System.out.println("  0b0101100  MEMORY COPY <dest>, <src>, <count>");
+        System.out.println("  0b0101101  MEMORY FILL <dest>, <value>, <count>");
+        System.out.println("  0b0101110  MEMORY COMPARE <addr1>, <addr2>, <count>");
+        System.out.println();
+        System.out.println("I/O OPERATIONS (47):");
+        System.out.println("  0b0101111  PRINT COUNTED STRING <address> (length, then characters)");
+        System.out.println();
         System.out.println("MEMORY ADDRESSING:");
         System.out.println("  Use 4-digit hex addresses: 0x0000 to 0xFFFF");
         System.out.println("  Immediate values: #123, #3.14, #-42");
@@ -0,0 +1,113 @@
+package tonnyi.bench;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One benchmark per arithmetic family (opcodes 10-19), on values that fit a
+ * long ("small") and on values that need BigDecimal ("big"). Bodies are
+ * chosen so the working value stays bounded across all iterations.
+ * Scores are instructions per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ArithmeticBenchmark
+{
+    static final int BODY = 16;
+    static final int ITERATIONS = 50_000;
+    static final int SETUP = 3;
+    static final int INSTRUCTIONS = Programs.FIXED + SETUP + ITERATIONS * (BODY + Programs.PER_ITERATION);
+
+    private static final String VALUE = "0x0100";
+    private static final String ONE = "0x0101";
+    private static final String SEVEN = "0x0102";
+
+    @Param({"ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "MODULO", "INCREMENT_DECREMENT", "POWER", "NEGATE", "ABSOLUTE"})
+    public String family;
+
+    @Param({"small", "big"})
+    public String operands;
+
+    private Path program;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup()
+    {
+        stdout = TonnyiRunner.silenceStdout();
+        String start = operands.equals("small") ? "#123456" : "#123456789012345678901234567890";
+        List<String> setup = Arrays.asList(
+                Programs.op(Programs.LOAD_IMMEDIATE, VALUE, start),
+                Programs.op(Programs.LOAD_IMMEDIATE, ONE, "#1"),
+                Programs.op(Programs.LOAD_IMMEDIATE, SEVEN, "#7"));
+        List<String> body;
+        switch (family)
+        {
+            case "ADD":
+                body = Programs.repeat(BODY, Programs.op(Programs.ADD, VALUE, ONE));
+                break;
+            case "SUBTRACT":
+                body = Programs.repeat(BODY, Programs.op(Programs.SUBTRACT, VALUE, ONE));
+                break;
+            case "MULTIPLY":
+                body = Programs.repeat(BODY, Programs.op(Programs.MULTIPLY, VALUE, ONE));
+                break;
+            case "DIVIDE":
+                body = Programs.repeat(BODY, Programs.op(Programs.DIVIDE, VALUE, ONE));
+                break;
+            case "MODULO":
+                body = Programs.repeat(BODY, Programs.op(Programs.MODULO, VALUE, SEVEN));
+                break;
+            case "INCREMENT_DECREMENT":
+                body = Programs.repeat(BODY, Programs.op(Programs.INCREMENT, VALUE), Programs.op(Programs.DECREMENT, VALUE));
+                break;
+            case "POWER":
+                body = Programs.repeat(BODY, Programs.op(Programs.POWER, VALUE, ONE));
+                break;
+            case "NEGATE":
+                body = Programs.repeat(BODY, Programs.op(Programs.NEGATE, VALUE));
+                break;
+            case "ABSOLUTE":
+                body = Programs.repeat(BODY, Programs.op(Programs.ABSOLUTE, VALUE));
+                break;
+            default:
+                throw new IllegalArgumentException(family);
+        }
+        program = Programs.loop("arithmetic-" + family + "-" + operands, setup, body, ITERATIONS);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        Programs.delete(program);
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void arithmetic()
+    {
+        TonnyiRunner.run(program);
+    }
+}
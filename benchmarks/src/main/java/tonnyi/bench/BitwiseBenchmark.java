@@ -0,0 +1,100 @@
+package tonnyi.bench;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One benchmark per bitwise family (opcodes 20-25), on values that fit a
+ * long ("small") and on values that need BigInteger ("big"). Shifts alternate
+ * left and right so the working value stays bounded. Scores are instructions
+ * per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BitwiseBenchmark
+{
+    static final int BODY = 16;
+    static final int ITERATIONS = 50_000;
+    static final int SETUP = 2;
+    static final int INSTRUCTIONS = Programs.FIXED + SETUP + ITERATIONS * (BODY + Programs.PER_ITERATION);
+
+    private static final String VALUE = "0x0200";
+    private static final String MASK = "0x0201";
+
+    @Param({"AND", "OR", "XOR", "NOT", "SHIFT"})
+    public String family;
+
+    @Param({"small", "big"})
+    public String operands;
+
+    private Path program;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup()
+    {
+        stdout = TonnyiRunner.silenceStdout();
+        // The big pair is 2^128 - 1 and 2^127 + 255, so AND, OR and XOR results stay above a long too
+        boolean small = operands.equals("small");
+        List<String> setup = Arrays.asList(
+                Programs.op(Programs.LOAD_IMMEDIATE, VALUE, small ? "#48879" : "#340282366920938463463374607431768211455"),
+                Programs.op(Programs.LOAD_IMMEDIATE, MASK, small ? "#255" : "#170141183460469231731687303715884105983"));
+        List<String> body;
+        switch (family)
+        {
+            case "AND":
+                body = Programs.repeat(BODY, Programs.op(Programs.AND, VALUE, MASK));
+                break;
+            case "OR":
+                body = Programs.repeat(BODY, Programs.op(Programs.OR, VALUE, MASK));
+                break;
+            case "XOR":
+                body = Programs.repeat(BODY, Programs.op(Programs.XOR, VALUE, MASK));
+                break;
+            case "NOT":
+                body = Programs.repeat(BODY, Programs.op(Programs.NOT, VALUE));
+                break;
+            case "SHIFT":
+                body = Programs.repeat(BODY, Programs.op(Programs.SHIFT_LEFT, VALUE, "#3"), Programs.op(Programs.SHIFT_RIGHT, VALUE, "#3"));
+                break;
+            default:
+                throw new IllegalArgumentException(family);
+        }
+        program = Programs.loop("bitwise-" + family + "-" + operands, setup, body, ITERATIONS);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        Programs.delete(program);
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void bitwise()
+    {
+        TonnyiRunner.run(program);
+    }
+}
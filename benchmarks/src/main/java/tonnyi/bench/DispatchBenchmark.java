@@ -0,0 +1,80 @@
+package tonnyi.bench;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw cost of the run loop: fetching, dispatching and retiring instructions
+ * that do (almost) no work, under each dispatch engine. Scores are
+ * instructions per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBenchmark
+{
+    static final int BODY = 16;
+    static final int ITERATIONS = 100_000;
+    static final int INSTRUCTIONS = Programs.FIXED + ITERATIONS * (BODY + Programs.PER_ITERATION);
+
+    @Param({"TIERED", "SWITCH", "THREADED", "COMPILED"})
+    public String engine;
+
+    private Object selectedEngine;
+    private Path nopLoop;
+    private Path compareLoop;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup()
+    {
+        stdout = TonnyiRunner.silenceStdout();
+        selectedEngine = TonnyiRunner.engine(engine);
+        nopLoop = Programs.loop("nop", Collections.<String>emptyList(),
+                Programs.repeat(BODY, Programs.op(Programs.NOP)), ITERATIONS);
+        // Reads two cells and sets the comparison flag: dispatch plus the cheapest real work
+        compareLoop = Programs.loop("compare", Collections.<String>emptyList(),
+                Programs.repeat(BODY, Programs.op(Programs.COMPARE, "0x0000", "0x0001")), ITERATIONS);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        Programs.delete(nopLoop);
+        Programs.delete(compareLoop);
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void nop()
+    {
+        TonnyiRunner.run(nopLoop, selectedEngine);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void compare()
+    {
+        TonnyiRunner.run(compareLoop, selectedEngine);
+    }
+}
@@ -0,0 +1,90 @@
+package tonnyi.bench;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Memory access through the operand read/write path (getValue/setValue):
+ * each body instruction touches a different cell so nothing is served from
+ * a single hot slot. Scores are instructions per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MemoryBenchmark
+{
+    static final int BODY = 16;
+    static final int ITERATIONS = 100_000;
+    static final int INSTRUCTIONS = Programs.FIXED + ITERATIONS * (BODY + Programs.PER_ITERATION);
+
+    @Param({"LOAD_IMMEDIATE", "MOV", "SWAP", "CLEAR"})
+    public String operation;
+
+    private Path program;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup()
+    {
+        stdout = TonnyiRunner.silenceStdout();
+        List<String> body = new ArrayList<>(BODY);
+        for (int i = 0; i < BODY; i++)
+        {
+            String dest = Programs.address(0x1000 + i * 0x101);
+            String src = Programs.address(0x8000 + i * 0x0F1);
+            switch (operation)
+            {
+                case "LOAD_IMMEDIATE":
+                    body.add(Programs.op(Programs.LOAD_IMMEDIATE, dest, "#" + (i * 17)));
+                    break;
+                case "MOV":
+                    body.add(Programs.op(Programs.MOV, dest, src));
+                    break;
+                case "SWAP":
+                    body.add(Programs.op(Programs.SWAP, dest, src));
+                    break;
+                case "CLEAR":
+                    body.add(Programs.op(Programs.CLEAR, dest));
+                    break;
+                default:
+                    throw new IllegalArgumentException(operation);
+            }
+        }
+        program = Programs.loop("memory-" + operation, Collections.<String>emptyList(), body, ITERATIONS);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        Programs.delete(program);
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void access()
+    {
+        TonnyiRunner.run(program);
+    }
+}
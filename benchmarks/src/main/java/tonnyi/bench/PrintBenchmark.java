@@ -0,0 +1,97 @@
+package tonnyi.bench;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Output instructions writing into a discarding stdout, so the score is the
+ * interpreter's formatting and printing cost rather than the terminal's.
+ * PRINT_STRING prints a 64-character string per instruction. Scores are
+ * instructions per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrintBenchmark
+{
+    static final int BODY = 8;
+    static final int ITERATIONS = 10_000;
+    static final int STRING_LENGTH = 64;
+    // The string characters, its terminator and the PRINT value
+    static final int SETUP = STRING_LENGTH + 2;
+    static final int INSTRUCTIONS = Programs.FIXED + SETUP + ITERATIONS * (BODY + Programs.PER_ITERATION);
+
+    private static final int STRING_START = 0x1000;
+    private static final String NUMBER = "0x0300";
+
+    @Param({"PRINT", "PRINT_CHAR", "PRINT_STRING"})
+    public String operation;
+
+    private Path program;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup()
+    {
+        stdout = TonnyiRunner.silenceStdout();
+        List<String> setup = new ArrayList<>(SETUP);
+        for (int i = 0; i < STRING_LENGTH; i++)
+        {
+            setup.add(Programs.op(Programs.LOAD_IMMEDIATE, Programs.address(STRING_START + i), "#" + ('A' + i % 26)));
+        }
+        setup.add(Programs.op(Programs.LOAD_IMMEDIATE, Programs.address(STRING_START + STRING_LENGTH), "#0"));
+        setup.add(Programs.op(Programs.LOAD_IMMEDIATE, NUMBER, "#1234567"));
+
+        String start = Programs.address(STRING_START);
+        List<String> body;
+        switch (operation)
+        {
+            case "PRINT":
+                body = Programs.repeat(BODY, Programs.op(Programs.PRINT, NUMBER));
+                break;
+            case "PRINT_CHAR":
+                body = Programs.repeat(BODY, Programs.op(Programs.PRINT_CHAR, start));
+                break;
+            case "PRINT_STRING":
+                body = Programs.repeat(BODY, Programs.op(Programs.PRINT_STRING, start));
+                break;
+            default:
+                throw new IllegalArgumentException(operation);
+        }
+        program = Programs.loop("print-" + operation, setup, body, ITERATIONS);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        Programs.delete(program);
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void print()
+    {
+        TonnyiRunner.run(program);
+    }
+}
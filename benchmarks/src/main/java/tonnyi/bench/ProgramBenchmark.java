@@ -0,0 +1,132 @@
+package tonnyi.bench;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end runs, including reading and decoding the source file: the
+ * bundled examples plus a synthetic loop mixing arithmetic, comparisons,
+ * branches and subroutine calls at several trip counts. Scores are the
+ * average time per complete program run. The {@code preloaded} variants
+ * instead reuse one program and one interpreter, as an embedding service
+ * would, so they measure only reset and execution.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProgramBenchmark
+{
+    private Path fibonacci;
+    private Path factorial;
+    private PrintStream stdout;
+    private Object interpreter;
+    private Object loadedFibonacci;
+    private Object loadedFactorial;
+
+    @Setup
+    public void setup()
+    {
+        stdout = TonnyiRunner.silenceStdout();
+        fibonacci = Programs.example("fibonacci.ton");
+        factorial = Programs.example("factorial.ton");
+        interpreter = TonnyiRunner.interpreter(System.out);
+        loadedFibonacci = TonnyiRunner.load(fibonacci);
+        loadedFactorial = TonnyiRunner.load(factorial);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        System.setOut(stdout);
+    }
+
+    /** The synthetic loop lives in its own state so only it is expanded over trip counts. */
+    @State(Scope.Benchmark)
+    public static class SyntheticLoop
+    {
+        @Param({"1000", "100000", "1000000"})
+        public int iterations;
+
+        private Path program;
+
+        @Setup
+        public void setup()
+        {
+            List<String> setup = Arrays.asList(
+                    Programs.op(Programs.LOAD_IMMEDIATE, "0x0000", "#0"),
+                    Programs.op(Programs.LOAD_IMMEDIATE, "0x0001", "#1"),
+                    Programs.op(Programs.LOAD_IMMEDIATE, "0x0002", "#1000"),
+                    // Skip over the subroutine body on the way into the loop
+                    Programs.op(Programs.JUMP, "loop"),
+                    "accumulate:",
+                    Programs.op(Programs.ADD, "0x0003", "0x0001"),
+                    Programs.op(Programs.MODULO, "0x0003", "0x0002"),
+                    Programs.op(Programs.RETURN));
+            List<String> body = Arrays.asList(
+                    Programs.op(Programs.MOV, "0x0004", "0x0001"),
+                    Programs.op(Programs.ADD, "0x0001", "0x0000"),
+                    Programs.op(Programs.MOV, "0x0000", "0x0004"),
+                    Programs.op(Programs.COMPARE, "0x0001", "0x0002"),
+                    Programs.op(Programs.JUMP_IF_LESS, "small"),
+                    Programs.op(Programs.MODULO, "0x0001", "0x0002"),
+                    "small:",
+                    Programs.op(Programs.CALL, "accumulate"));
+            program = Programs.loop("synthetic-" + iterations, setup, body, iterations);
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            Programs.delete(program);
+        }
+    }
+
+    @Benchmark
+    public void fibonacci()
+    {
+        TonnyiRunner.run(fibonacci);
+    }
+
+    @Benchmark
+    public void factorial()
+    {
+        TonnyiRunner.run(factorial);
+    }
+
+    @Benchmark
+    public void fibonacciPreloaded()
+    {
+        TonnyiRunner.runLoaded(interpreter, loadedFibonacci);
+    }
+
+    @Benchmark
+    public void factorialPreloaded()
+    {
+        TonnyiRunner.runLoaded(interpreter, loadedFactorial);
+    }
+
+    @Benchmark
+    public void syntheticLoop(SyntheticLoop loop)
+    {
+        TonnyiRunner.run(loop.program);
+    }
+}
@@ -0,0 +1,180 @@
+package tonnyi.bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Synthetic .ton programs for the benchmarks.
+ *
+ * <p>Every generated program has the same shape, so the number of executed
+ * instructions is known up front and can be used with
+ * {@code @OperationsPerInvocation} to report instructions per second:
+ *
+ * <pre>
+ *   LOAD IMMEDIATE counter, #0
+ *   LOAD IMMEDIATE limit, #iterations
+ *   ...setup...
+ * loop:
+ *   ...body...
+ *   INCREMENT counter
+ *   COMPARE counter, limit
+ *   JUMP IF LESS loop
+ *   HALT
+ * </pre>
+ */
+final class Programs
+{
+    static final int HALT = 0;
+    static final int NOP = 1;
+    static final int PRINT = 3;
+    static final int LOAD_IMMEDIATE = 4;
+    static final int MOV = 6;
+    static final int SWAP = 8;
+    static final int CLEAR = 9;
+    static final int ADD = 10;
+    static final int SUBTRACT = 11;
+    static final int MULTIPLY = 12;
+    static final int DIVIDE = 13;
+    static final int MODULO = 14;
+    static final int INCREMENT = 15;
+    static final int DECREMENT = 16;
+    static final int POWER = 17;
+    static final int NEGATE = 18;
+    static final int ABSOLUTE = 19;
+    static final int AND = 20;
+    static final int OR = 21;
+    static final int XOR = 22;
+    static final int NOT = 23;
+    static final int SHIFT_LEFT = 24;
+    static final int SHIFT_RIGHT = 25;
+    static final int COMPARE = 26;
+    static final int JUMP = 27;
+    static final int JUMP_IF_LESS = 33;
+    static final int CALL = 34;
+    static final int RETURN = 35;
+    static final int PRINT_CHAR = 39;
+    static final int PRINT_STRING = 40;
+
+    /** Instructions outside the loop: the two counter loads and the final HALT. */
+    static final int FIXED = 3;
+    /** Loop bookkeeping per iteration: INCREMENT, COMPARE, JUMP IF LESS. */
+    static final int PER_ITERATION = 3;
+
+    private static final String COUNTER = "0xF000";
+    private static final String LIMIT = "0xF001";
+
+    private Programs()
+    {
+    }
+
+    /** Executed instruction count of {@link #loop}, for programs with no extra setup. */
+    static long instructions(int body, int iterations)
+    {
+        return FIXED + (long) iterations * (body + PER_ITERATION);
+    }
+
+    static String op(int opcode, String... operands)
+    {
+        StringBuilder line = new StringBuilder("0b");
+        String binary = Integer.toBinaryString(opcode);
+        for (int i = binary.length(); i < 7; i++)
+        {
+            line.append('0');
+        }
+        line.append(binary);
+        for (String operand : operands)
+        {
+            line.append(' ').append(operand);
+        }
+        return line.toString();
+    }
+
+    static String address(int address)
+    {
+        return String.format("0x%04X", address);
+    }
+
+    /** Body made of {@code size} copies of the given instructions, cycled in order. */
+    static List<String> repeat(int size, String... instructions)
+    {
+        List<String> body = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+        {
+            body.add(instructions[i % instructions.length]);
+        }
+        return body;
+    }
+
+    static Path loop(String name, List<String> setup, List<String> body, int iterations)
+    {
+        List<String> lines = new ArrayList<>();
+        lines.add("// Generated benchmark program: " + name);
+        lines.add(op(LOAD_IMMEDIATE, COUNTER, "#0"));
+        lines.add(op(LOAD_IMMEDIATE, LIMIT, "#" + iterations));
+        lines.addAll(setup);
+        lines.add("loop:");
+        lines.addAll(body);
+        lines.add(op(INCREMENT, COUNTER));
+        lines.add(op(COMPARE, COUNTER, LIMIT));
+        lines.add(op(JUMP_IF_LESS, "loop"));
+        lines.add(op(HALT));
+        return write(name, lines);
+    }
+
+    static Path write(String name, List<String> lines)
+    {
+        try
+        {
+            Path file = Files.createTempFile("tonnyi-bench-" + name + "-", ".ton");
+            file.toFile().deleteOnExit();
+            Files.write(file, lines, StandardCharsets.UTF_8);
+            return file;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void delete(Path file)
+    {
+        try
+        {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Resolves one of the bundled {@code Example/*.ton} programs. The directory
+     * can be set with {@code -Dtonnyi.examples=...}; by default it is looked up
+     * from the repository root and from the benchmarks module.
+     */
+    static Path example(String fileName)
+    {
+        String configured = System.getProperty("tonnyi.examples");
+        List<Path> candidates = configured != null
+                ? Arrays.asList(Paths.get(configured))
+                : Arrays.asList(Paths.get("Example"), Paths.get("..", "Example"));
+        for (Path directory : candidates)
+        {
+            Path file = directory.resolve(fileName);
+            if (Files.isRegularFile(file))
+            {
+                return file.toAbsolutePath();
+            }
+        }
+        throw new IllegalStateException("Cannot find " + fileName + " in " + candidates
+                + "; set -Dtonnyi.examples=<path to Example directory>");
+    }
+}
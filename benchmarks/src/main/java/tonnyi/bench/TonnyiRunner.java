@@ -0,0 +1,152 @@
+package tonnyi.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+
+/**
+ * Entry point into the interpreter for the benchmarks.
+ *
+ * <p>{@code Tonnyi} lives in the unnamed package, which classes in a named
+ * package cannot import, so its public API is bound once through method
+ * handles. The handle calls themselves are negligible next to a program run.
+ */
+final class TonnyiRunner
+{
+    private static final MethodHandle NEW_INTERPRETER;
+    private static final MethodHandle EXECUTE_FROM_FILE;
+    private static final MethodHandle SET_ENGINE;
+    private static final MethodHandle NEW_EMBEDDED;
+    private static final MethodHandle LOAD_PROGRAM;
+    private static final MethodHandle RUN;
+    private static final MethodHandle RESET;
+    private static final Class<?> ENGINE;
+
+    static
+    {
+        try
+        {
+            Class<?> tonnyi = Class.forName("Tonnyi");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            NEW_INTERPRETER = lookup.findConstructor(tonnyi, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            EXECUTE_FROM_FILE = lookup.findVirtual(tonnyi, "executeFromFile", MethodType.methodType(void.class, String.class))
+                    .asType(MethodType.methodType(void.class, Object.class, String.class));
+            ENGINE = Class.forName("Tonnyi$Engine");
+            SET_ENGINE = lookup.findVirtual(tonnyi, "setEngine", MethodType.methodType(void.class, ENGINE))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            Class<?> program = Class.forName("Tonnyi$Program");
+            NEW_EMBEDDED = lookup.findConstructor(tonnyi, MethodType.methodType(void.class, OutputStream.class, InputStream.class))
+                    .asType(MethodType.methodType(Object.class, OutputStream.class, InputStream.class));
+            LOAD_PROGRAM = lookup.findStatic(program, "fromFile", MethodType.methodType(program, Path.class))
+                    .asType(MethodType.methodType(Object.class, Path.class));
+            RUN = lookup.findVirtual(tonnyi, "run", MethodType.methodType(void.class, program))
+                    .asType(MethodType.methodType(void.class, Object.class, Object.class));
+            RESET = lookup.findVirtual(tonnyi, "reset", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private TonnyiRunner()
+    {
+    }
+
+    /** Loads and runs a program on a fresh interpreter, exactly like {@code java Tonnyi file}. */
+    static void run(Path program)
+    {
+        run(program, null);
+    }
+
+    /** Runs a program with the given dispatch engine ({@code TIERED}, {@code SWITCH}, {@code THREADED}, {@code COMPILED}), or the default if null. */
+    static void run(Path program, Object engine)
+    {
+        try
+        {
+            Object interpreter = NEW_INTERPRETER.invokeExact();
+            if (engine != null)
+            {
+                SET_ENGINE.invokeExact(interpreter, engine);
+            }
+            EXECUTE_FROM_FILE.invokeExact(interpreter, program.toString());
+        }
+        catch (Throwable t)
+        {
+            throw new IllegalStateException("Failed to run " + program, t);
+        }
+    }
+
+    /** Creates an interpreter bound to the given streams instead of {@code System.out} and {@code System.in}. */
+    static Object interpreter(OutputStream out)
+    {
+        try
+        {
+            return NEW_EMBEDDED.invokeExact(out, (InputStream) new ByteArrayInputStream(new byte[0]));
+        }
+        catch (Throwable t)
+        {
+            throw new IllegalStateException("Failed to create an interpreter", t);
+        }
+    }
+
+    /** Decodes and optimizes a program once, for running repeatedly with {@link #runLoaded}. */
+    static Object load(Path program)
+    {
+        try
+        {
+            return LOAD_PROGRAM.invokeExact(program);
+        }
+        catch (Throwable t)
+        {
+            throw new IllegalStateException("Failed to load " + program, t);
+        }
+    }
+
+    /** Resets an interpreter and runs an already loaded program on it, with no file access. */
+    static void runLoaded(Object interpreter, Object program)
+    {
+        try
+        {
+            RESET.invokeExact(interpreter);
+            RUN.invokeExact(interpreter, program);
+        }
+        catch (Throwable t)
+        {
+            throw new IllegalStateException("Failed to run program", t);
+        }
+    }
+
+    /** Resolves an engine name as used in {@code @Param} values to the interpreter's enum constant. */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object engine(String name)
+    {
+        return Enum.valueOf((Class) ENGINE, name);
+    }
+
+    /** Replaces stdout with a sink so print-heavy programs measure the interpreter, not the terminal. */
+    static PrintStream silenceStdout()
+    {
+        PrintStream previous = System.out;
+        System.setOut(new PrintStream(new OutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+            }
+        }));
+        return previous;
+    }
+}